@@ -30,7 +30,6 @@
 }
 
 #JNI callbacks
--keep class eu.faircode.netguard.Allowed { *; }
 -keep class eu.faircode.netguard.Packet { *; }
 -keep class eu.faircode.netguard.ResourceRecord { *; }
 -keep class eu.faircode.netguard.Usage { *; }
@@ -40,8 +39,8 @@
     void logPacket(eu.faircode.netguard.Packet);
     void dnsResolved(eu.faircode.netguard.ResourceRecord);
     boolean isDomainBlocked(java.lang.String);
-    int getUidQ(int, int, java.lang.String, int, java.lang.String, int);
-    eu.faircode.netguard.Allowed isAddressAllowed(eu.faircode.netguard.Packet);
+    int getUidQ(int, int, byte[], int, byte[], int);
+    int isAddressAllowed(eu.faircode.netguard.Packet);
     void accountUsage(eu.faircode.netguard.Usage);
 }
 
@@ -136,6 +136,7 @@ public class ActivityDns extends AppCompatActivity {
             protected Long doInBackground(Object... objects) {
                 Log.i(TAG, "Clear DNS");
                 DatabaseHelper.getInstance(ActivityDns.this).clearDns();
+                ServiceSinkhole.clearDnsCache();
                 return null;
             }
 
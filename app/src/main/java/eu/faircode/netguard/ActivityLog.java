@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -35,6 +36,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
@@ -56,7 +58,9 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class ActivityLog extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = "TrackerControl.Log";
@@ -74,7 +78,18 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
     private static final int REQUEST_PCAP = 1;
 
-    private DatabaseHelper.LogChangedListener listener = () -> runOnUiThread(this::updateAdapter);
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_PAGES = 10;
+    private static final int SEARCH_LIMIT = 500;
+
+    // Pages of log records, newest first, shown as one cursor
+    private final List<Cursor> pages = new ArrayList<>();
+    private long pageTime = Long.MAX_VALUE; // key of the oldest record shown
+    private long pageId = Long.MAX_VALUE;
+    private long lastId = 0; // newest record shown
+    private boolean pagesComplete = false;
+
+    private DatabaseHelper.LogChangedListener listener = () -> runOnUiThread(this::appendAdapter);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -112,17 +127,35 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
         lvLog = findViewById(R.id.lvLog);
 
-        boolean udp = prefs.getBoolean("proto_udp", true);
-        boolean tcp = prefs.getBoolean("proto_tcp", true);
-        boolean other = prefs.getBoolean("proto_other", true);
-        boolean allowed = prefs.getBoolean("traffic_allowed", true);
-        boolean blocked = prefs.getBoolean("traffic_blocked", true);
-
-        adapter = new AdapterLog(this, DatabaseHelper.getInstance(this).getLog(udp, tcp, other, allowed, blocked), resolve, organization);
-        adapter.setFilterQueryProvider(constraint -> DatabaseHelper.getInstance(ActivityLog.this).searchLog(constraint.toString()));
+        loadPage(PAGE_SIZE);
+        adapter = new AdapterLog(this, new PagesCursor(pages), resolve, organization);
+        // Without a search, the pages are shown again when filtering completed, see search
+        adapter.setFilterQueryProvider(constraint -> TextUtils.isEmpty(constraint)
+                ? null
+                : DatabaseHelper.getInstance(ActivityLog.this).searchLog(constraint.toString(), SEARCH_LIMIT));
 
         lvLog.setAdapter(adapter);
 
+        // Load older records when scrolling near the end
+        lvLog.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (adapter != null && !pagesComplete &&
+                        adapter.getCursor() instanceof PagesCursor &&
+                        firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 4) {
+                    if (pages.size() < MAX_PAGES)
+                        loadPage(PAGE_SIZE);
+                    else
+                        reloadPages(adapter.getCount() + PAGE_SIZE);
+                    showPages();
+                }
+            }
+        });
+
         try {
             vpn4 = InetAddress.getByName(prefs.getString("vpn4", "10.1.10.1"));
             vpn6 = InetAddress.getByName(prefs.getString("vpn6", "fd00:1:fd00:1:fd00:1:fd00:1"));
@@ -260,7 +293,10 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     @Override
     protected void onDestroy() {
         running = false;
+        if (adapter != null)
+            adapter.changeCursor(null);
         adapter = null;
+        closePages();
         PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
         super.onDestroy();
     }
@@ -296,20 +332,20 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
             @Override
             public boolean onQueryTextSubmit(String query) {
                 if (adapter != null)
-                    adapter.getFilter().filter(getUidForName(query));
+                    search(query);
                 return true;
             }
 
             @Override
             public boolean onQueryTextChange(String newText) {
                 if (adapter != null)
-                    adapter.getFilter().filter(getUidForName(newText));
+                    search(newText);
                 return true;
             }
         });
         searchView.setOnCloseListener(() -> {
             if (adapter != null)
-                adapter.getFilter().filter(null);
+                search(null);
             return true;
         });
 
@@ -466,20 +502,133 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
     private void updateAdapter() {
         if (adapter != null) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            boolean udp = prefs.getBoolean("proto_udp", true);
-            boolean tcp = prefs.getBoolean("proto_tcp", true);
-            boolean other = prefs.getBoolean("proto_other", true);
-            boolean allowed = prefs.getBoolean("traffic_allowed", true);
-            boolean blocked = prefs.getBoolean("traffic_blocked", true);
-            adapter.changeCursor(DatabaseHelper.getInstance(this).getLog(udp, tcp, other, allowed, blocked));
             if (menuSearch != null && menuSearch.isActionViewExpanded()) {
                 SearchView searchView = (SearchView) menuSearch.getActionView();
-                adapter.getFilter().filter(getUidForName(searchView.getQuery().toString()));
+                search(searchView.getQuery().toString());
+            } else {
+                reloadPages(PAGE_SIZE);
+                showPages();
             }
         }
     }
 
+    private void appendAdapter() {
+        if (adapter == null)
+            return;
+
+        if (!(adapter.getCursor() instanceof PagesCursor)) {
+            updateAdapter();
+            return;
+        }
+
+        // Merge pages now and then, rather than holding many small cursors
+        if (pages.size() >= MAX_PAGES) {
+            reloadPages(adapter.getCount());
+            showPages();
+            return;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        Cursor cursor = DatabaseHelper.getInstance(this).getLogSince(
+                prefs.getBoolean("proto_udp", true),
+                prefs.getBoolean("proto_tcp", true),
+                prefs.getBoolean("proto_other", true),
+                prefs.getBoolean("traffic_allowed", true),
+                prefs.getBoolean("traffic_blocked", true),
+                lastId);
+        if (cursor.getCount() == 0)
+            cursor.close();
+        else {
+            lastId = Math.max(lastId, getMaxId(cursor));
+            pages.add(0, cursor);
+            showPages();
+        }
+    }
+
+    /**
+     * Show the records matching a search, or all records in pages again without a search, after
+     * any search still running, so that older records can be loaded by scrolling again
+     *
+     * @param query Search, or null
+     */
+    private void search(String query) {
+        if (TextUtils.isEmpty(query))
+            adapter.getFilter().filter(null, count -> {
+                reloadPages(PAGE_SIZE);
+                showPages();
+            });
+        else
+            adapter.getFilter().filter(getUidForName(query));
+    }
+
+    private Cursor getPage(long time, long id, int limit) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        return DatabaseHelper.getInstance(this).getLog(
+                prefs.getBoolean("proto_udp", true),
+                prefs.getBoolean("proto_tcp", true),
+                prefs.getBoolean("proto_other", true),
+                prefs.getBoolean("traffic_allowed", true),
+                prefs.getBoolean("traffic_blocked", true),
+                time, id, limit);
+    }
+
+    private void loadPage(int limit) {
+        Cursor cursor = getPage(pageTime, pageId, limit);
+        pages.add(cursor);
+
+        if (cursor.getCount() < limit)
+            pagesComplete = true;
+        if (cursor.moveToLast()) {
+            pageTime = cursor.getLong(cursor.getColumnIndex("time"));
+            pageId = cursor.getLong(cursor.getColumnIndex("_id"));
+        }
+        lastId = Math.max(lastId, getMaxId(cursor));
+    }
+
+    private void reloadPages(int limit) {
+        closePages();
+        pageTime = Long.MAX_VALUE;
+        pageId = Long.MAX_VALUE;
+        lastId = 0;
+        pagesComplete = false;
+        loadPage(Math.max(limit, PAGE_SIZE));
+    }
+
+    private void showPages() {
+        Cursor old = adapter.swapCursor(new PagesCursor(pages));
+        if (old != null && !(old instanceof PagesCursor))
+            old.close();
+    }
+
+    private void closePages() {
+        for (Cursor cursor : pages)
+            cursor.close();
+        pages.clear();
+    }
+
+    private static long getMaxId(Cursor cursor) {
+        long max = 0;
+        int colId = cursor.getColumnIndex("_id");
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext())
+            max = Math.max(max, cursor.getLong(colId));
+        return max;
+    }
+
+    /**
+     * Shows the pages as one cursor. The pages are reused by later views and closed by the
+     * activity, so closing a view leaves them open.
+     */
+    private static class PagesCursor extends MergeCursor {
+        PagesCursor(List<Cursor> pages) {
+            super(pages.toArray(new Cursor[0]));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     private String getUidForName(String query) {
         if (query != null && query.length() > 0) {
             for (Rule rule : Rule.getRules(true, ActivityLog.this))
@@ -84,7 +84,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -622,43 +621,49 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
             try (Cursor data = DatabaseHelper.getInstance(this).getHosts()) {
                 if (data == null) throw new IOException("Could not read hosts.");
 
-                List<String> columnNames = new ArrayList<>();
-                Collections.addAll(columnNames, data.getColumnNames());
-                columnNames.add("Tracker");
-                columnNames.add("Category");
-                columnNames.add("Package");
-                columnNames.add("App");
-
-                csv.writeNext(columnNames.toArray(new String[0]));
-                while (data.moveToNext()) {
-                    String[] row = new String[data.getColumnNames().length + 4];
-                    for (int i = 0; i < data.getColumnNames().length; i++) {
-                        row[i] = data.getString(i);
-                    }
+                try (TrackerList.Classifier classifier = TrackerList.getInstance(this).getClassifier(data)) {
+                    List<Integer> columns = new ArrayList<>();
+                    List<String> columnNames = new ArrayList<>();
+                    for (int i = 0; i < data.getColumnCount(); i++)
+                        if (!TrackerList.Classifier.isClassification(data.getColumnName(i))) {
+                            columns.add(i);
+                            columnNames.add(data.getColumnName(i));
+                        }
+                    columnNames.add("Tracker");
+                    columnNames.add("Category");
+                    columnNames.add("Package");
+                    columnNames.add("App");
+
+                    csv.writeNext(columnNames.toArray(new String[0]));
+                    while (data.moveToNext()) {
+                        String[] row = new String[columns.size() + 4];
+                        for (int i = 0; i < columns.size(); i++) {
+                            row[i] = data.getString(columns.get(i));
+                        }
 
-                    String hostname = data.getString(data.getColumnIndex("daddr"));
-                    Tracker tracker = TrackerList.findTracker(hostname);
-                    if (tracker != null) {
-                        row[data.getColumnNames().length] = tracker.getName();
-                        row[data.getColumnNames().length + 1] = tracker.getCategory();
-                    } else {
-                        row[data.getColumnNames().length] = "";
-                        row[data.getColumnNames().length + 1] = "";
-                    }
+                        Tracker tracker = classifier.getTracker();
+                        if (tracker != null) {
+                            row[columns.size()] = tracker.getName();
+                            row[columns.size() + 1] = tracker.getCategory();
+                        } else {
+                            row[columns.size()] = "";
+                            row[columns.size() + 1] = "";
+                        }
 
-                    try {
-                        String pkg = pm.getNameForUid(data.getInt(data.getColumnIndex("uid")));
-                        ApplicationInfo info = pm.getApplicationInfo(pkg, 0);
-                        String name = pm.getApplicationLabel(info).toString();
-
-                        row[data.getColumnNames().length + 2] = pkg;
-                        row[data.getColumnNames().length + 3] = name;
-                    } catch (PackageManager.NameNotFoundException e) {
-                        row[data.getColumnNames().length + 2] = "";
-                        row[data.getColumnNames().length + 3] = "";
-                    }
+                        try {
+                            String pkg = pm.getNameForUid(data.getInt(data.getColumnIndex("uid")));
+                            ApplicationInfo info = pm.getApplicationInfo(pkg, 0);
+                            String name = pm.getApplicationLabel(info).toString();
 
-                    csv.writeNext(row);
+                            row[columns.size() + 2] = pkg;
+                            row[columns.size() + 3] = name;
+                        } catch (PackageManager.NameNotFoundException e) {
+                            row[columns.size() + 2] = "";
+                            row[columns.size() + 3] = "";
+                        }
+
+                        csv.writeNext(row);
+                    }
                 }
             }
         }
@@ -59,6 +59,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 
 import net.kollnig.missioncontrol.BuildConfig;
+import net.kollnig.missioncontrol.DetailsActivity;
 import net.kollnig.missioncontrol.R;
 import net.kollnig.missioncontrol.data.InternetBlocklist;
 import net.kollnig.missioncontrol.data.TrackerBlocklist;
@@ -651,7 +652,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         else if ("hosts_url_new".equals(name))
             getPreferenceScreen().findPreference(name).setSummary(prefs.getString(name, BuildConfig.HOSTS_FILE_URI));
 
-        else if ("loglevel".equals(name))
+        else if ("loglevel".equals(name) || "native_workers".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
 
         else if ("domain_based_blocked".equals(name)) {
@@ -974,6 +975,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         serializer.endTag(null, "forward");
 
         serializer.startTag(null, "blocklist");
+        DetailsActivity.savePrefs(this); // blocklists are kept in journals
         xmlExport(getSharedPreferences(PREF_BLOCKLIST, Context.MODE_PRIVATE), serializer);
         serializer.endTag(null, "blocklist");
 
@@ -573,6 +573,10 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
         } else if (!rule.internet) {
             holder.tvDetails.setVisibility(View.VISIBLE);
             holder.tvDetails.setText(R.string.no_internet);
+        } else if (rule.libraries > 0) {
+            // Found by the background library analysis, before any traffic
+            holder.tvDetails.setVisibility(View.VISIBLE);
+            holder.tvDetails.setText(context.getString(R.string.msg_installed_tracker_libraries_found, rule.libraries));
         /*} else if (!rule.apply) {
             holder.tvDetails.setVisibility(View.VISIBLE);
             holder.tvDetails.setText(R.string.bypass_vpn);*/
@@ -27,13 +27,17 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import net.kollnig.missioncontrol.data.Tracker;
+
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -50,7 +54,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = this.getReadableDatabase();
             // There is a segmented index on uid
             // There is an index on block
-            return db.query(true, "access", new String[]{"daddr", "time", "uncertain"}, "uid = ?", new String[]{Integer.toString(uid)}, null, null, null, null);
+            return db.query(true, "access", new String[]{"daddr", "time", "uncertain", "tracker", "category", "list"}, "uid = ?", new String[]{Integer.toString(uid)}, null, null, null, null);
         } finally {
             lock.readLock().unlock();
         }
@@ -62,7 +66,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = this.getReadableDatabase();
             // There is a segmented index on uid
             // There is an index on block
-            return db.query(true, "access", new String[]{"uid", "daddr", "time", "uncertain"}, null, null, null, null, null, null);
+            return db.query(true, "access", new String[]{"uid", "daddr", "time", "uncertain", "tracker", "category", "list"}, null, null, null, null, null, null);
         } finally {
             lock.readLock().unlock();
         }
@@ -71,7 +75,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "TrackerControl.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 22;
+    private static final int DB_VERSION = 26;
 
     private static boolean once = true;
     private static List<LogChangedListener> logChangedListeners = new ArrayList<>();
@@ -82,6 +86,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static Handler handler = null;
 
     private static final Map<Integer, Long> mapUidHosts = new HashMap<>();
+    private static volatile int accessGeneration = 0;
 
     private final static int MSG_LOG = 1;
     private final static int MSG_ACCESS = 2;
@@ -149,6 +154,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);
+        createTableLibrary(db);
     }
 
     @Override
@@ -181,6 +187,31 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX idx_log_dname ON log(dname)");
         db.execSQL("CREATE INDEX idx_log_dport ON log(dport)");
         db.execSQL("CREATE INDEX idx_log_uid ON log(uid)");
+        createIndexLog(db);
+    }
+
+    private void createIndexLog(SQLiteDatabase db) {
+        Log.i(TAG, "Creating log indexes");
+
+        // Serves pages of allowed or blocked traffic only, in order of (time, ID)
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_log_allowed ON log(allowed, time)");
+
+        // Serves pages of TCP or UDP traffic only. TCP and UDP together are most of the traffic,
+        // and other protocols are few, so these pages are served by the index on time
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_log_protocol ON log(protocol, time)");
+
+        // Full text index for search, kept in sync by triggers
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS log_fts USING fts4(content=\"log\", daddr, dname, data)");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS log_fts_insert AFTER INSERT ON log BEGIN" +
+                " INSERT INTO log_fts(docid, daddr, dname, data) VALUES (new.ID, new.daddr, new.dname, new.data);" +
+                " END");
+        createTriggerLogDelete(db);
+    }
+
+    private void createTriggerLogDelete(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS log_fts_delete BEFORE DELETE ON log BEGIN" +
+                " DELETE FROM log_fts WHERE docid = old.ID;" +
+                " END");
     }
 
     private void createTableAccess(SQLiteDatabase db) {
@@ -199,6 +230,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", received INTEGER" +
                 ", connections INTEGER" +
                 ", uncertain INTEGER" +
+                ", tracker TEXT" +
+                ", category TEXT" +
+                ", list INTEGER" +
                 ");");
         db.execSQL("CREATE UNIQUE INDEX idx_access ON access(uid, version, protocol, daddr, dport)");
         db.execSQL("CREATE INDEX idx_access_daddr ON access(daddr)");
@@ -245,6 +279,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE UNIQUE INDEX idx_package ON app(package)");
     }
 
+    private void createTableLibrary(SQLiteDatabase db) {
+        Log.i(TAG, "Creating library table");
+        db.execSQL("CREATE TABLE library (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", package TEXT NOT NULL" +
+                ", version INTEGER NOT NULL" +
+                ", updated INTEGER NOT NULL" +
+                ", size INTEGER NOT NULL" +
+                ", hash TEXT NOT NULL" +
+                ", signatures INTEGER NOT NULL" +
+                ", trackers TEXT NOT NULL" +
+                ", count INTEGER NOT NULL" +
+                ", time INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_library_package ON library(package)");
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         try (Cursor cursor = db.rawQuery("SELECT * FROM " + table + " LIMIT 0", null)) {
             return (cursor.getColumnIndex(column) >= 0);
@@ -371,6 +422,29 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.execSQL("ALTER TABLE access ADD COLUMN uncertain INTEGER");
                 oldVersion = 22;
             }
+            if (oldVersion < 23) {
+                // Records are classified again lazily, see TrackerList.Classifier
+                if (!columnExists(db, "access", "tracker"))
+                    db.execSQL("ALTER TABLE access ADD COLUMN tracker TEXT");
+                if (!columnExists(db, "access", "category"))
+                    db.execSQL("ALTER TABLE access ADD COLUMN category TEXT");
+                if (!columnExists(db, "access", "list"))
+                    db.execSQL("ALTER TABLE access ADD COLUMN list INTEGER");
+                oldVersion = 23;
+            }
+            if (oldVersion < 24) {
+                createTableLibrary(db);
+                oldVersion = 24;
+            }
+            if (oldVersion < 25) {
+                createIndexLog(db);
+                db.execSQL("INSERT INTO log_fts(log_fts) VALUES ('rebuild')");
+                oldVersion = 25;
+            }
+            if (oldVersion < 26) {
+                createIndexLog(db);
+                oldVersion = 26;
+            }
 
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
@@ -387,54 +461,84 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     // Log
-    public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
+    public void writeBatch(LogBatch batch) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("version", packet.version);
-
-                if (packet.protocol < 0)
-                    cv.putNull("protocol");
-                else
-                    cv.put("protocol", packet.protocol);
-
-                cv.put("flags", packet.flags);
-
-                cv.put("saddr", packet.saddr);
-                if (packet.sport < 0)
-                    cv.putNull("sport");
-                else
-                    cv.put("sport", packet.sport);
-
-                cv.put("daddr", packet.daddr);
-                if (packet.dport < 0)
-                    cv.putNull("dport");
-                else
-                    cv.put("dport", packet.dport);
-
-                if (dname == null)
-                    cv.putNull("dname");
-                else
-                    cv.put("dname", dname);
-
-                cv.put("data", packet.data);
-
-                if (packet.uid < 0)
-                    cv.putNull("uid");
-                else
-                    cv.put("uid", packet.uid);
-
-                cv.put("allowed", packet.allowed ? 1 : 0);
-
-                cv.put("connection", connection);
-                cv.put("interactive", interactive ? 1 : 0);
+                if (!batch.getLogs().isEmpty()) {
+                    SQLiteStatement insert = db.compileStatement("INSERT INTO log" +
+                            " (time, version, protocol, flags, saddr, sport, daddr, dport, dname, data, uid, allowed, connection, interactive)" +
+                            " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    try {
+                        for (LogBatch.Entry entry : batch.getLogs()) {
+                            Packet packet = entry.packet;
+                            insert.clearBindings();
+                            insert.bindLong(1, packet.time);
+                            insert.bindLong(2, packet.version);
+                            if (packet.protocol >= 0)
+                                insert.bindLong(3, packet.protocol);
+                            bindString(insert, 4, packet.flags);
+                            bindString(insert, 5, packet.saddr);
+                            if (packet.sport >= 0)
+                                insert.bindLong(6, packet.sport);
+                            bindString(insert, 7, packet.daddr);
+                            if (packet.dport >= 0)
+                                insert.bindLong(8, packet.dport);
+                            bindString(insert, 9, entry.dname);
+                            bindString(insert, 10, packet.data);
+                            if (packet.uid >= 0)
+                                insert.bindLong(11, packet.uid);
+                            insert.bindLong(12, packet.allowed ? 1 : 0);
+                            insert.bindLong(13, entry.connection);
+                            insert.bindLong(14, entry.interactive ? 1 : 0);
+
+                            if (insert.executeInsert() == -1)
+                                Log.e(TAG, "Insert log failed");
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                }
 
-                if (db.insert("log", null, cv) == -1)
-                    Log.e(TAG, "Insert log failed");
+                if (!batch.getAccess().isEmpty()) {
+                    // There is a segmented index on uid, version, protocol, daddr and dport
+                    String where = " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
+                    SQLiteStatement update = db.compileStatement("UPDATE access" +
+                            " SET time = ?, allowed = ?, uncertain = ?, tracker = ?, category = ?, list = ?" + where);
+                    SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO access" +
+                            " (time, allowed, uncertain, tracker, category, list, uid, version, protocol, daddr, dport, block)" +
+                            " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, -1)");
+                    SQLiteStatement usage = db.compileStatement("UPDATE access" +
+                            " SET sent = IFNULL(sent, 0) + ?, received = IFNULL(received, 0) + ?, connections = IFNULL(connections, 0) + ?" + where);
+                    try {
+                        for (LogBatch.Access access : batch.getAccess()) {
+                            if (access.seen) {
+                                bindAccess(update, access);
+                                if (update.executeUpdateDelete() == 0) {
+                                    bindAccess(insert, access);
+                                    if (insert.executeInsert() == -1)
+                                        Log.e(TAG, "Insert access failed");
+                                }
+                            }
+
+                            if (access.connections > 0) {
+                                usage.bindLong(1, access.sent);
+                                usage.bindLong(2, access.received);
+                                usage.bindLong(3, access.connections);
+                                bindKey(usage, 4, access);
+                                int rows = usage.executeUpdateDelete();
+                                if (rows != 1)
+                                    Log.e(TAG, "Update usage failed rows=" + rows);
+                            }
+                        }
+                    } finally {
+                        update.close();
+                        insert.close();
+                        usage.close();
+                    }
+                }
 
                 db.setTransactionSuccessful();
             } finally {
@@ -444,7 +548,35 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lock.writeLock().unlock();
         }
 
-        notifyLogChanged();
+        if (!batch.getLogs().isEmpty())
+            notifyLogChanged();
+        if (!batch.getAccess().isEmpty())
+            notifyAccessChanged();
+    }
+
+    private static void bindAccess(SQLiteStatement statement, LogBatch.Access access) {
+        statement.bindLong(1, access.time);
+        statement.bindLong(2, access.allowed ? 1 : 0);
+        statement.bindLong(3, access.uncertain);
+        bindString(statement, 4, access.tracker == null ? null : access.tracker.name);
+        bindString(statement, 5, access.tracker == null ? null : access.tracker.category);
+        statement.bindLong(6, access.list);
+        bindKey(statement, 7, access);
+    }
+
+    private static void bindKey(SQLiteStatement statement, int index, LogBatch.Access access) {
+        statement.bindLong(index, access.uid);
+        statement.bindLong(index + 1, access.version);
+        statement.bindLong(index + 2, access.protocol);
+        statement.bindString(index + 3, access.daddr);
+        statement.bindLong(index + 4, access.dport);
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
     }
 
     public void clearLog(int uid) {
@@ -453,9 +585,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                if (uid < 0)
+                if (uid < 0) {
+                    // Empty the full text index at once, rather than row by row by the trigger
+                    db.execSQL("DROP TRIGGER IF EXISTS log_fts_delete");
                     db.delete("log", null, new String[]{});
-                else
+                    db.execSQL("INSERT INTO log_fts(log_fts) VALUES ('rebuild')");
+                    createTriggerLogDelete(db);
+                } else
                     db.delete("log", "uid = ?", new String[]{Integer.toString(uid)});
 
                 db.setTransactionSuccessful();
@@ -492,138 +628,147 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+    /**
+     * Get a page of log records, newest first, keyed on (time, ID) of the last record of the
+     * previous page
+     *
+     * @param time  Time of the last record of the previous page, or Long.MAX_VALUE
+     * @param id    ID of the last record of the previous page, or Long.MAX_VALUE
+     * @param limit Maximum number of records
+     * @return Cursor with the records
+     */
+    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked,
+                         long time, long id, int limit) {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
             // There is an index on time
-            // There is no index on protocol/allowed for write performance
+            // There is an index on allowed, time
+            // There is an index on protocol, time
             String query = "SELECT ID AS _id, *";
             query += " FROM log";
-            query += " WHERE (0 = 1";
-            if (udp)
-                query += " OR protocol = 17";
-            if (tcp)
-                query += " OR protocol = 6";
-            if (other)
-                query += " OR (protocol <> 6 AND protocol <> 17)";
-            query += ") AND (0 = 1";
-            if (allowed)
-                query += " OR allowed = 1";
-            if (blocked)
-                query += " OR allowed = 0";
-            query += ")";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{});
+            query += " WHERE " + getLogFilter(udp, tcp, other, allowed, blocked);
+            query += " AND time <= ? AND (time < ? OR ID < ?)";
+            query += " ORDER BY time DESC, ID DESC";
+            query += " LIMIT " + limit;
+            return db.rawQuery(query, new String[]{
+                    Long.toString(time), Long.toString(time), Long.toString(id)});
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public Cursor searchLog(String find) {
+    /**
+     * Get log records added after a record, newest first
+     *
+     * @param id ID of the newest record already shown
+     * @return Cursor with the records
+     */
+    public Cursor getLogSince(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked,
+                              long id) {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on daddr, dname, dport and uid
+            // ID is the primary key
             String query = "SELECT ID AS _id, *";
             query += " FROM log";
-            query += " WHERE daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find});
+            query += " WHERE ID > ? AND " + getLogFilter(udp, tcp, other, allowed, blocked);
+            query += " ORDER BY time DESC, ID DESC";
+            return db.rawQuery(query, new String[]{Long.toString(id)});
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    // Access
+    private static String getLogFilter(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+        List<String> filter = new ArrayList<>();
+
+        if (!(udp && tcp && other)) {
+            List<String> protocol = new ArrayList<>();
+            if (udp && tcp)
+                protocol.add("protocol IN (6, 17)");
+            else if (udp)
+                protocol.add("protocol = 17");
+            else if (tcp)
+                protocol.add("protocol = 6");
+            if (other)
+                protocol.add("protocol NOT IN (6, 17)");
+            filter.add(protocol.isEmpty() ? "0 = 1" : "(" + TextUtils.join(" OR ", protocol) + ")");
+        }
 
-    public boolean updateAccess(Packet packet, String dname, int block, int uncertain) {
-        int rows;
+        if (allowed && !blocked)
+            filter.add("allowed = 1");
+        else if (blocked && !allowed)
+            filter.add("allowed = 0");
+        else if (!allowed)
+            filter.add("0 = 1");
 
-        lock.writeLock().lock();
-        try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            db.beginTransactionNonExclusive();
-            try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("allowed", packet.allowed ? 1 : 0);
-                cv.put("uncertain", uncertain);
-                if (block >= 0)
-                    cv.put("block", block);
-
-                // There is a segmented index on uid, version, protocol, daddr and dport
-                rows = db.update("access", cv, "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?",
-                        new String[]{
-                                Integer.toString(packet.uid),
-                                Integer.toString(packet.version),
-                                Integer.toString(packet.protocol),
-                                dname == null ? packet.daddr : dname,
-                                Integer.toString(packet.dport)});
+        return (filter.isEmpty() ? "1 = 1" : TextUtils.join(" AND ", filter));
+    }
 
-                if (rows == 0) {
-                    cv.put("uid", packet.uid);
-                    cv.put("version", packet.version);
-                    cv.put("protocol", packet.protocol);
-                    cv.put("daddr", dname == null ? packet.daddr : dname);
-                    cv.put("dport", packet.dport);
-                    if (block < 0)
-                        cv.put("block", block);
-
-                    if (db.insert("access", null, cv) == -1)
-                        Log.e(TAG, "Insert access failed");
-                } else if (rows != 1)
-                    Log.e(TAG, "Update access failed rows=" + rows);
+    /**
+     * Search log records by address, name or data, and by port or uid
+     *
+     * @param find  Words to search for, the last may be incomplete
+     * @param limit Maximum number of records
+     * @return Cursor with the records, newest first
+     */
+    public Cursor searchLog(String find, int limit) {
+        // Words are matched as a phrase, since names and addresses are split on dots and colons
+        StringBuilder phrase = new StringBuilder();
+        for (String word : find.split("[^\\p{L}\\p{N}]+"))
+            if (!word.isEmpty())
+                phrase.append(phrase.length() == 0 ? "" : " ").append(word);
+        String match = (phrase.length() == 0 ? null : "\"" + phrase + "*\"");
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            // There is a full text index on daddr, dname and data
+            // There is an index on dport and uid
+            String query = "SELECT ID AS _id, *";
+            query += " FROM log";
+            query += " WHERE dport = ? OR uid = ?";
+            if (match != null)
+                query += " OR ID IN (SELECT docid FROM log_fts WHERE log_fts MATCH ?)";
+            query += " ORDER BY time DESC, ID DESC";
+            query += " LIMIT " + limit;
+            return db.rawQuery(query, match == null
+                    ? new String[]{find, find}
+                    : new String[]{find, find, match});
         } finally {
-            lock.writeLock().unlock();
+            lock.readLock().unlock();
         }
-
-        notifyAccessChanged();
-        return (rows == 0);
     }
 
-    public void updateUsage(Usage usage, String dname) {
+    // Access
+
+    /**
+     * Store tracker classification of access records
+     *
+     * @param trackers Destination names or addresses, and their trackers or null
+     * @param list     Version of the tracker lists used to classify
+     */
+    public void updateTrackers(Map<String, Tracker> trackers, int list) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                // There is a segmented index on uid, version, protocol, daddr and dport
-                String selection = "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
-                String[] selectionArgs = new String[]{
-                        Integer.toString(usage.Uid),
-                        Integer.toString(usage.Version),
-                        Integer.toString(usage.Protocol),
-                        dname == null ? usage.DAddr : dname,
-                        Integer.toString(usage.DPort)
-                };
-
-                try (Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null)) {
-                    long sent = 0;
-                    long received = 0;
-                    int connections = 0;
-                    int colSent = cursor.getColumnIndex("sent");
-                    int colReceived = cursor.getColumnIndex("received");
-                    int colConnections = cursor.getColumnIndex("connections");
-                    if (cursor.moveToNext()) {
-                        sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
-                        received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
-                        connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
+                // There is an index on daddr
+                SQLiteStatement update = db.compileStatement("UPDATE access" +
+                        " SET tracker = ?, category = ?, list = ? WHERE daddr = ?");
+                try {
+                    for (Map.Entry<String, Tracker> entry : trackers.entrySet()) {
+                        Tracker tracker = entry.getValue();
+                        bindString(update, 1, tracker == null ? null : tracker.name);
+                        bindString(update, 2, tracker == null ? null : tracker.category);
+                        update.bindLong(3, list);
+                        update.bindString(4, entry.getKey());
+                        update.executeUpdateDelete();
                     }
-
-                    ContentValues cv = new ContentValues();
-                    cv.put("sent", sent + usage.Sent);
-                    cv.put("received", received + usage.Received);
-                    cv.put("connections", connections + 1);
-
-                    int rows = db.update("access", cv, selection, selectionArgs);
-                    if (rows != 1)
-                        Log.e(TAG, "Update usage failed rows=" + rows);
+                } finally {
+                    update.close();
                 }
 
                 db.setTransactionSuccessful();
@@ -633,8 +778,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         } finally {
             lock.writeLock().unlock();
         }
+    }
 
-        notifyAccessChanged();
+    /**
+     * Get a number that changes whenever access records are removed, so that data derived from
+     * the access table can be kept up to date incrementally in between
+     *
+     * @return Generation of the access table
+     */
+    public int getAccessGeneration() {
+        return accessGeneration;
     }
 
     public void setAccess(long id, int block) {
@@ -668,6 +821,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.beginTransactionNonExclusive();
             try {
                 db.delete("access", null, null);
+                accessGeneration++;
 
                 db.setTransactionSuccessful();
             } finally {
@@ -692,6 +846,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
                 else
                     db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
+                accessGeneration++;
 
                 db.setTransactionSuccessful();
             } finally {
@@ -803,6 +958,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    public Map<Integer, Long> getHostCounts() {
+        Map<Integer, Long> hostCounts = new HashMap<>();
+
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            // There is a segmented index on uid
+            // There is an index on block
+            String query = "SELECT uid, COUNT(*) FROM access WHERE block >= 0 GROUP BY uid";
+            try (Cursor cursor = db.rawQuery(query, new String[0])) {
+                while (cursor.moveToNext())
+                    hostCounts.put(cursor.getInt(0), cursor.getLong(1));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return hostCounts;
+    }
+
     // DNS
 
     public boolean insertDns(ResourceRecord rr) {
@@ -908,7 +1083,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getQAName(int uid, String ip, boolean alive) {
+    public Cursor getQAName(String ip, boolean alive) {
         long now = new Date().getTime();
         lock.readLock().lock();
         try {
@@ -918,12 +1093,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             // There is a segmented index on resource
             String query = "SELECT d.qname, d.aname, d.time, d.ttl";
             query += " FROM dns AS d";
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
+            query += " WHERE d.resource = ?";
             if (alive)
-                query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
+                query += " AND (d.time IS NULL OR d.time + d.ttl >= ?)";
             query += " GROUP BY d.qname"; // remove duplicates
             query += " ORDER BY d.qname";
-            return db.rawQuery(query, new String[]{});
+            return db.rawQuery(query, alive
+                    ? new String[]{ip, Long.toString(now)}
+                    : new String[]{ip});
         } finally {
             lock.readLock().unlock();
         }
@@ -962,39 +1139,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getDns() {
+    /**
+     * Get the addresses a host name was resolved to, most recent first
+     *
+     * @param qname Host name
+     * @return Cursor with the addresses
+     */
+    public Cursor getResource(String qname) {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on resource
             // There is a segmented index on qname
-            String query = "SELECT ID AS _id, *";
-            query += " FROM dns";
-            query += " ORDER BY resource, qname";
-            return db.rawQuery(query, new String[]{});
+            String query = "SELECT resource FROM dns";
+            query += " WHERE qname = ?";
+            query += " ORDER BY time DESC";
+            query += " LIMIT 4";
+            return db.rawQuery(query, new String[]{qname});
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public Cursor getAccessDns(String dname) {
-        long now = new Date().getTime();
+    public Cursor getDns() {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-
-            // There is a segmented index on dns.qname
-            // There is an index on access.daddr and access.block
-            String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
-            query += " FROM access AS a";
-            query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = a.daddr";
-            query += " WHERE a.block >= 0";
-            query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
-            if (dname != null)
-                query += " AND a.daddr = ?";
-
-            return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
+            // There is an index on resource
+            // There is a segmented index on qname
+            String query = "SELECT ID AS _id, *";
+            query += " FROM dns";
+            query += " ORDER BY resource, qname";
+            return db.rawQuery(query, new String[]{});
         } finally {
             lock.readLock().unlock();
         }
@@ -1109,6 +1284,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    public Cursor getApps() {
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return db.rawQuery("SELECT * FROM app", new String[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public Cursor getApp(String packageName) {
         lock.readLock().lock();
         try {
@@ -1123,6 +1308,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    public void clearApp(String packageName) {
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                // There is an index on package
+                db.delete("app", "package = ?", new String[]{packageName});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public void clearApps() {
         lock.writeLock().lock();
         try {
@@ -1139,6 +1341,109 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Tracker libraries
+
+    public Cursor getLibrary(String packageName) {
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            // There is an index on package
+            String query = "SELECT * FROM library WHERE package = ?";
+
+            return db.rawQuery(query, new String[]{packageName});
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store the result of a tracker library analysis
+     *
+     * @param packageName Package analysed
+     * @param version     Version code of the package
+     * @param updated     Last update time of the package
+     * @param size        Size of the apk
+     * @param hash        Hash of the apk
+     * @param signatures  Version of the signature database
+     * @param trackers    Ids of found tracker libraries
+     */
+    public void setLibrary(String packageName, long version, long updated, long size, String hash,
+                           int signatures, int[] trackers) {
+        StringBuilder ids = new StringBuilder();
+        for (int id : trackers) {
+            if (ids.length() > 0)
+                ids.append(',');
+            ids.append(id);
+        }
+
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                ContentValues cv = new ContentValues();
+                cv.put("package", packageName);
+                cv.put("version", version);
+                cv.put("updated", updated);
+                cv.put("size", size);
+                cv.put("hash", hash);
+                cv.put("signatures", signatures);
+                cv.put("trackers", ids.toString());
+                cv.put("count", trackers.length);
+                cv.put("time", new Date().getTime());
+
+                if (db.insertWithOnConflict("library", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                    Log.e(TAG, "Insert library failed");
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param signatures Version of the signature database
+     * @return Number of tracker libraries by package, for analyses with this database
+     */
+    public Map<String, Integer> getLibraryCounts(int signatures) {
+        Map<String, Integer> counts = new HashMap<>();
+
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            String query = "SELECT package, count FROM library WHERE signatures = ?";
+            try (Cursor cursor = db.rawQuery(query, new String[]{Integer.toString(signatures)})) {
+                while (cursor.moveToNext())
+                    counts.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return counts;
+    }
+
+    public void clearLibrary(String packageName) {
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                // There is an index on package
+                db.delete("library", "package = ?", new String[]{packageName});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public void addLogChangedListener(LogChangedListener listener) {
         logChangedListeners.add(listener);
     }
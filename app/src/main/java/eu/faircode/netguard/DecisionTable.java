@@ -0,0 +1,78 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Table of recent address decisions, shared with native code in a direct buffer, so that repeated
+ * decisions do not need a call into Java.
+ * <p>
+ * The layout matches struct decision_table in netguard.h. Entries are only read and written by
+ * native code, under the decision lock of the native context, from the verdicts returned by
+ * isAddressAllowed with {@link #FLAG_KEEP}. Java invalidates all entries at once by changing
+ * the generation, and native code forgets the decisions about resolved addresses itself.
+ * <p>
+ * Entries are placed by the hash of their address, so that the decisions about an address can be
+ * found without a scan. Each entry tells whether native code should log the packets it decides
+ * about, so that packets which would not be logged need no call into Java.
+ */
+public class DecisionTable {
+    public static final int VERDICT_BLOCK = 0;
+    public static final int VERDICT_ALLOW = 1;
+    public static final int VERDICT_REDIRECT = 2;
+    public static final int FLAG_LOG = 0x100; // see DECISION_LOG
+    public static final int FLAG_KEEP = 0x200; // see DECISION_KEEP
+
+    private static final int HEADER = 8;
+    private static final int ENTRY = 40;
+
+    private static final int OFF_GENERATION = 0;
+    private static final int OFF_SIZE = 4;
+
+    private final ByteBuffer buffer;
+    private int generation = 1;
+
+    /**
+     * @param size Number of entries, a power of two
+     */
+    public DecisionTable(int size) {
+        if (Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("Size must be a power of two");
+
+        buffer = ByteBuffer.allocateDirect(HEADER + ENTRY * size).order(ByteOrder.nativeOrder());
+        buffer.putInt(OFF_GENERATION, generation);
+        buffer.putInt(OFF_SIZE, size);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Forget all decisions
+     */
+    public synchronized void invalidate() {
+        generation = (generation == Integer.MAX_VALUE ? 1 : generation + 1);
+        buffer.putInt(OFF_GENERATION, generation);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, in-memory index of DNS answers by resolved address.
+ * <p>
+ * Filled as answers are seen, so that the packet path never has to wait for the dns table, which
+ * is written behind. Least recently used addresses are evicted first.
+ */
+public class DnsCache {
+    private static final int MAX_ADDRESSES = 8192;
+    private static final int MAX_NAMES = 16; // per address
+
+    private static final Answer[] NONE = new Answer[0];
+
+    private final Map<String, Answer[]> answers = new LinkedHashMap<String, Answer[]>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Answer[]> eldest) {
+            return size() > MAX_ADDRESSES;
+        }
+    };
+
+    public static class Answer implements Comparable<Answer> {
+        public final String qname;
+        public final String aname;
+        public final long time;
+        public final long ttl; // milliseconds
+
+        public Answer(String qname, String aname, long time, long ttl) {
+            this.qname = qname;
+            this.aname = aname;
+            this.time = time;
+            this.ttl = ttl;
+        }
+
+        public long getExpires() {
+            return time + ttl;
+        }
+
+        public boolean isExpired(long now) {
+            return time + ttl < now;
+        }
+
+        @Override
+        public int compareTo(Answer other) {
+            return qname.compareTo(other.qname);
+        }
+    }
+
+    /**
+     * Add answer, replacing an earlier answer for the same name and address
+     *
+     * @param resource Resolved address
+     * @param answer   Answer
+     */
+    public synchronized void put(String resource, Answer answer) {
+        Answer[] current = answers.get(resource);
+        if (current == null)
+            current = NONE;
+
+        // Arrays are never modified once stored, so that readers can use them without locking
+        int index = Arrays.binarySearch(current, answer);
+        Answer[] updated;
+        if (index >= 0) {
+            updated = current.clone();
+            updated[index] = answer;
+        } else if (current.length < MAX_NAMES) {
+            index = -index - 1;
+            updated = new Answer[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            updated[index] = answer;
+            System.arraycopy(current, index, updated, index + 1, current.length - index);
+        } else
+            return;
+
+        answers.put(resource, updated);
+    }
+
+    /**
+     * Get answers for an address, including expired answers
+     *
+     * @param resource Resolved address
+     * @return Answers ordered by name, or null if the address is not known
+     */
+    public synchronized Answer[] get(String resource) {
+        return answers.get(resource);
+    }
+
+    public synchronized void clear() {
+        answers.clear();
+    }
+
+    public synchronized int size() {
+        return answers.size();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache, evicting expired entries on access and least recently used entries on
+ * insertion.
+ * <p>
+ * Keys are spread over independently locked shards, so that concurrent lookups rarely contend.
+ * Lookups do not allocate.
+ */
+public class ExpiringCache<K, V> {
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final Shard<K, V>[] shards;
+
+    private static final class Entry<V> {
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Shard<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private final int capacity;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+
+        Shard(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > capacity) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param capacity Maximum number of entries
+     * @param shards   Number of shards, a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiringCache(int capacity, int shards) {
+        if (Integer.bitCount(shards) != 1)
+            throw new IllegalArgumentException("Shards must be a power of two");
+
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++)
+            this.shards[i] = new Shard<>(Math.max(1, capacity / shards));
+    }
+
+    /**
+     * Get value, if present and not expired
+     *
+     * @param key Key
+     * @return Value or null
+     */
+    public V get(K key) {
+        Shard<K, V> shard = shard(key);
+        synchronized (shard) {
+            Entry<V> entry = shard.get(key);
+            if (entry != null
+                    && entry.expires != NEVER && System.currentTimeMillis() > entry.expires) {
+                shard.remove(key);
+                shard.evictions++;
+                entry = null;
+            }
+
+            if (entry == null) {
+                shard.misses++;
+                return null;
+            }
+
+            shard.hits++;
+            return entry.value;
+        }
+    }
+
+    /**
+     * Put value, possibly evicting the least recently used entry of the same shard
+     *
+     * @param key     Key
+     * @param value   Value
+     * @param expires Expiry time in milliseconds, or {@link #NEVER}
+     */
+    public void put(K key, V value, long expires) {
+        Entry<V> entry = new Entry<>(value, expires);
+        Shard<K, V> shard = shard(key);
+        synchronized (shard) {
+            shard.put(key, entry);
+        }
+    }
+
+    public void remove(K key) {
+        Shard<K, V> shard = shard(key);
+        synchronized (shard) {
+            shard.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Shard<K, V> shard : shards)
+            synchronized (shard) {
+                shard.clear();
+            }
+    }
+
+    @Override
+    public String toString() {
+        int size = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (Shard<K, V> shard : shards)
+            synchronized (shard) {
+                size += shard.size();
+                hits += shard.hits;
+                misses += shard.misses;
+                evictions += shard.evictions;
+            }
+        return "size=" + size + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+
+    private Shard<K, V> shard(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import android.content.SharedPreferences;
+
+/**
+ * Immutable snapshot of the settings consulted for every packet, so that the packet path reads
+ * plain fields rather than the shared preferences.
+ */
+public final class FilterConfig {
+    public final boolean filter;
+    public final boolean filterUdp;
+    public final boolean log;
+    public final boolean logApp;
+    public final boolean logLogcat;
+    public final boolean trackUsage;
+    public final boolean checkTrackers;
+    public final int ttl; // minimum DNS TTL in seconds
+
+    private FilterConfig(SharedPreferences prefs) {
+        filter = prefs.getBoolean("filter", true);
+        filterUdp = prefs.getBoolean("filter_udp", true);
+        log = prefs.getBoolean("log", false);
+        logApp = prefs.getBoolean("log_app", true);
+        logLogcat = prefs.getBoolean("log_logcat", false);
+        trackUsage = prefs.getBoolean("track_usage", false);
+        checkTrackers = (!Util.isPlayStoreInstall() || logLogcat);
+        ttl = Integer.parseInt(prefs.getString("ttl", "259200"));
+    }
+
+    public static FilterConfig from(SharedPreferences prefs) {
+        return new FilterConfig(prefs);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import net.kollnig.missioncontrol.data.Tracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Log and access events collected over a short window, to be written in one transaction by
+ * {@link DatabaseHelper#writeBatch(LogBatch)}.
+ * <p>
+ * Access updates for the same destination are coalesced, keeping the latest state and summing
+ * usage. Not thread safe, a batch is owned by the log thread until it is written.
+ */
+public class LogBatch {
+    private final List<Entry> logs = new ArrayList<>();
+    private final Map<String, Access> access = new LinkedHashMap<>();
+    private int events = 0;
+
+    public static class Entry {
+        public final Packet packet;
+        public final String dname;
+        public final int connection;
+        public final boolean interactive;
+
+        Entry(Packet packet, String dname, int connection, boolean interactive) {
+            this.packet = packet;
+            this.dname = dname;
+            this.connection = connection;
+            this.interactive = interactive;
+        }
+    }
+
+    public static class Access {
+        public final int uid;
+        public final int version;
+        public final int protocol;
+        public final String daddr;
+        public final int dport;
+
+        // Latest state, if seen in this batch
+        public boolean seen = false;
+        public long time;
+        public boolean allowed;
+        public int uncertain;
+        public Tracker tracker;
+        public int list;
+
+        // Usage deltas
+        public long sent = 0;
+        public long received = 0;
+        public int connections = 0;
+
+        Access(int uid, int version, int protocol, String daddr, int dport) {
+            this.uid = uid;
+            this.version = version;
+            this.protocol = protocol;
+            this.daddr = daddr;
+            this.dport = dport;
+        }
+    }
+
+    public void addLog(Packet packet, String dname, int connection, boolean interactive) {
+        logs.add(new Entry(packet, dname, connection, interactive));
+        events++;
+    }
+
+    public void addAccess(Packet packet, String dname, int dport, int uncertain, Tracker tracker, int list) {
+        Access a = getAccess(packet.uid, packet.version, packet.protocol,
+                dname == null ? packet.daddr : dname, dport);
+        a.seen = true;
+        a.time = packet.time;
+        a.allowed = packet.allowed;
+        a.uncertain = uncertain;
+        a.tracker = tracker;
+        a.list = list;
+        events++;
+    }
+
+    public void addUsage(Usage usage, String dname) {
+        Access a = getAccess(usage.Uid, usage.Version, usage.Protocol,
+                dname == null ? usage.DAddr : dname, usage.DPort);
+        a.sent += usage.Sent;
+        a.received += usage.Received;
+        a.connections++;
+        events++;
+    }
+
+    public List<Entry> getLogs() {
+        return logs;
+    }
+
+    public Collection<Access> getAccess() {
+        return access.values();
+    }
+
+    /**
+     * @return Number of events added, before coalescing
+     */
+    public int size() {
+        return events;
+    }
+
+    public boolean isEmpty() {
+        return (events == 0);
+    }
+
+    private Access getAccess(int uid, int version, int protocol, String daddr, int dport) {
+        String key = uid + "/" + version + "/" + protocol + "/" + daddr + "/" + dport;
+        Access a = access.get(key);
+        if (a == null) {
+            a = new Access(uid, version, protocol, daddr, dport);
+            access.put(key, a);
+        }
+        return a;
+    }
+}
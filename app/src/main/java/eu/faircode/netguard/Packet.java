@@ -33,6 +33,10 @@ public class Packet {
     public int uid;
     public boolean allowed;
 
+    // Redirect of a DecisionTable.VERDICT_REDIRECT decision
+    public String raddr;
+    public int rport;
+
     public Packet() {
     }
 
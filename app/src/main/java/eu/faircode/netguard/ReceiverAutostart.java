@@ -126,6 +126,9 @@ public class ReceiverAutostart extends BroadcastReceiver {
             if (!Util.isDebuggable(context))
                 editor.remove("loglevel");
 
+            // Tracker libraries are stored in the database now, and analysed again if needed
+            context.getSharedPreferences("library_analysis", Context.MODE_PRIVATE).edit().clear().apply();
+
             editor.putInt("version", newVersion);
             editor.apply();
         }
@@ -40,6 +40,7 @@ import com.google.android.material.snackbar.Snackbar;
 
 import net.kollnig.missioncontrol.Common;
 import net.kollnig.missioncontrol.R;
+import net.kollnig.missioncontrol.analysis.TrackerLibraryAnalyser;
 import net.kollnig.missioncontrol.data.Pair;
 import net.kollnig.missioncontrol.data.TrackerList;
 
@@ -88,16 +89,43 @@ public class Rule {
     public String[] related = null;
 
     public long hosts;
+    public int libraries = -1; // not analysed
     public boolean changed;
 
     public boolean expanded = false;
 
     private static List<PackageInfo> cachePackageInfo = null;
+    private static Map<String, App> cacheApp = null;
+    private static Predefined cachePredefined = null;
     private static Map<PackageInfo, String> cacheLabel = new HashMap<>();
     private static Map<String, Boolean> cacheSystem = new HashMap<>();
     private static Map<String, Boolean> cacheInternet = new HashMap<>();
     private static Map<PackageInfo, Boolean> cacheEnabled = new HashMap<>();
 
+    // Stored attributes of an installed package, see DatabaseHelper.addApp
+    private static final class App {
+        final String label;
+        final boolean system;
+        final boolean internet;
+        final boolean enabled;
+
+        App(String label, boolean system, boolean internet, boolean enabled) {
+            this.label = label;
+            this.system = system;
+            this.internet = internet;
+            this.enabled = enabled;
+        }
+    }
+
+    // Rules of R.xml.predefined, which do not change at runtime
+    private static final class Predefined {
+        final Map<String, Boolean> wifi_blocked = new HashMap<>();
+        final Map<String, Boolean> other_blocked = new HashMap<>();
+        final Map<String, Boolean> roaming = new HashMap<>();
+        final Map<String, String[]> related = new HashMap<>();
+        final Map<String, Boolean> system = new HashMap<>();
+    }
+
     static List<PackageInfo> getPackages(Context context) {
         if (cachePackageInfo == null) {
             PackageManager pm = context.getPackageManager();
@@ -106,6 +134,81 @@ public class Rule {
         return new ArrayList<>(cachePackageInfo);
     }
 
+    private static App getApp(DatabaseHelper dh, PackageInfo info, Context context) {
+        if (cacheApp == null) {
+            Map<String, App> apps = new HashMap<>();
+            try (Cursor cursor = dh.getApps()) {
+                int colPackage = cursor.getColumnIndex("package");
+                int colLabel = cursor.getColumnIndex("label");
+                int colSystem = cursor.getColumnIndex("system");
+                int colInternet = cursor.getColumnIndex("internet");
+                int colEnabled = cursor.getColumnIndex("enabled");
+                while (cursor.moveToNext())
+                    apps.put(cursor.getString(colPackage), new App(
+                            cursor.getString(colLabel),
+                            cursor.getInt(colSystem) > 0,
+                            cursor.getInt(colInternet) > 0,
+                            cursor.getInt(colEnabled) > 0));
+            }
+            cacheApp = apps;
+        }
+
+        App app = cacheApp.get(info.packageName);
+        if (app == null) {
+            app = new App(
+                    getLabel(info, context),
+                    isSystem(info.packageName, context),
+                    hasInternet(info.packageName, context),
+                    isEnabled(info, context));
+            dh.addApp(info.packageName, app.label, app.system, app.internet, app.enabled);
+            cacheApp.put(info.packageName, app);
+        }
+        return app;
+    }
+
+    private static Predefined getPredefined(Context context) {
+        if (cachePredefined == null) {
+            Predefined predefined = new Predefined();
+            try {
+                XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
+                int eventType = xml.getEventType();
+                while (eventType != XmlPullParser.END_DOCUMENT) {
+                    if (eventType == XmlPullParser.START_TAG)
+                        if ("wifi".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
+                            predefined.wifi_blocked.put(pkg, pblocked);
+
+                        } else if ("other".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
+                            predefined.other_blocked.put(pkg, pblocked);
+                            // Without attribute, the roaming default applies
+                            if (xml.getAttributeValue(null, "roaming") != null)
+                                predefined.roaming.put(pkg, xml.getAttributeBooleanValue(null, "roaming", true));
+
+                        } else if ("relation".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            String[] rel = xml.getAttributeValue(null, "related").split(",");
+                            predefined.related.put(pkg, rel);
+
+                        } else if ("type".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean system = xml.getAttributeBooleanValue(null, "system", true);
+                            predefined.system.put(pkg, system);
+                        }
+
+
+                    eventType = xml.next();
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+            cachePredefined = predefined;
+        }
+        return cachePredefined;
+    }
+
     private static String getLabel(PackageInfo info, Context context) {
         if (!cacheLabel.containsKey(info)) {
             PackageManager pm = context.getPackageManager();
@@ -136,6 +239,7 @@ public class Rule {
         Log.i(TAG, "Clearing cache");
         synchronized (context.getApplicationContext()) {
             cachePackageInfo = null;
+            cacheApp = null;
             cacheLabel.clear();
             cacheSystem.clear();
             cacheInternet.clear();
@@ -146,6 +250,28 @@ public class Rule {
         dh.clearApps();
     }
 
+    /**
+     * Forget a single added, changed or removed package, keeping what is known about others
+     *
+     * @param packageName Package name
+     * @param context     Context
+     */
+    public static void clearCache(String packageName, Context context) {
+        Log.i(TAG, "Clearing cache package=" + packageName);
+        synchronized (context.getApplicationContext()) {
+            cachePackageInfo = null;
+            if (cacheApp != null)
+                cacheApp.remove(packageName);
+            cacheLabel.clear();
+            cacheSystem.remove(packageName);
+            cacheInternet.remove(packageName);
+            cacheEnabled.clear();
+        }
+
+        DatabaseHelper dh = DatabaseHelper.getInstance(context);
+        dh.clearApp(packageName);
+    }
+
     private Rule(DatabaseHelper dh, PackageInfo info, Context context) {
         this.uid = info.applicationInfo.uid;
         this.packageName = info.packageName;
@@ -188,26 +314,11 @@ public class Rule {
             this.enabled = true;
             this.pkg = false;
         } else {
-            Cursor cursor = null;
-            try {
-                cursor = dh.getApp(this.packageName);
-                if (cursor.moveToNext()) {
-                    this.name = cursor.getString(cursor.getColumnIndex("label"));
-                    this.system = cursor.getInt(cursor.getColumnIndex("system")) > 0;
-                    this.internet = cursor.getInt(cursor.getColumnIndex("internet")) > 0;
-                    this.enabled = cursor.getInt(cursor.getColumnIndex("enabled")) > 0;
-                } else {
-                    this.name = getLabel(info, context);
-                    this.system = isSystem(info.packageName, context);
-                    this.internet = hasInternet(info.packageName, context);
-                    this.enabled = isEnabled(info, context);
-
-                    dh.addApp(this.packageName, this.name, this.system, this.internet, this.enabled);
-                }
-            } finally {
-                if (cursor != null)
-                    cursor.close();
-            }
+            App app = getApp(dh, info, context);
+            this.name = app.label;
+            this.system = app.system;
+            this.internet = app.internet;
+            this.enabled = app.enabled;
         }
     }
 
@@ -254,45 +365,12 @@ public class Rule {
             default_screen_other = default_screen_other && screen_on;
 
             // Get predefined rules
-            Map<String, Boolean> pre_wifi_blocked = new HashMap<>();
-            Map<String, Boolean> pre_other_blocked = new HashMap<>();
-            Map<String, Boolean> pre_roaming = new HashMap<>();
-            Map<String, String[]> pre_related = new HashMap<>();
-            Map<String, Boolean> pre_system = new HashMap<>();
-            try {
-                XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
-                int eventType = xml.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG)
-                        if ("wifi".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            pre_wifi_blocked.put(pkg, pblocked);
-
-                        } else if ("other".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            boolean proaming = xml.getAttributeBooleanValue(null, "roaming", default_roaming);
-                            pre_other_blocked.put(pkg, pblocked);
-                            pre_roaming.put(pkg, proaming);
-
-                        } else if ("relation".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            String[] rel = xml.getAttributeValue(null, "related").split(",");
-                            pre_related.put(pkg, rel);
-
-                        } else if ("type".equals(xml.getName())) {
-                            String pkg = xml.getAttributeValue(null, "package");
-                            boolean system = xml.getAttributeBooleanValue(null, "system", true);
-                            pre_system.put(pkg, system);
-                        }
-
-
-                    eventType = xml.next();
-                }
-            } catch (Throwable ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            }
+            Predefined predefined = getPredefined(context);
+            Map<String, Boolean> pre_wifi_blocked = predefined.wifi_blocked;
+            Map<String, Boolean> pre_other_blocked = predefined.other_blocked;
+            Map<String, Boolean> pre_roaming = predefined.roaming;
+            Map<String, String[]> pre_related = predefined.related;
+            Map<String, Boolean> pre_system = predefined.system;
 
             // Build rule list
             List<Rule> listRules = new ArrayList<>();
@@ -361,6 +439,20 @@ public class Rule {
             listPI.add(nobody);
 
             DatabaseHelper dh = DatabaseHelper.getInstance(context);
+            Map<Integer, Long> hostCounts = dh.getHostCounts();
+            Map<String, Integer> libraryCounts = dh.getLibraryCounts(TrackerLibraryAnalyser.getDatabaseVersion());
+
+            // Index packages by uid, rather than searching all packages for each package
+            Map<Integer, List<String>> uidPackages = new HashMap<>();
+            for (PackageInfo info : listPI) {
+                List<String> packages = uidPackages.get(info.applicationInfo.uid);
+                if (packages == null) {
+                    packages = new ArrayList<>(1);
+                    uidPackages.put(info.applicationInfo.uid, packages);
+                }
+                packages.add(info.packageName);
+            }
+
             for (PackageInfo info : listPI)
                 try {
                     // Skip self
@@ -399,14 +491,18 @@ public class Rule {
                         List<String> listPkg = new ArrayList<>();
                         if (pre_related.containsKey(info.packageName))
                             listPkg.addAll(Arrays.asList(pre_related.get(info.packageName)));
-                        for (PackageInfo pi : listPI)
-                            if (pi.applicationInfo.uid == rule.uid && !pi.packageName.equals(rule.packageName)) {
+                        for (String pkg : uidPackages.get(rule.uid))
+                            if (!pkg.equals(rule.packageName)) {
                                 rule.relateduids = true;
-                                listPkg.add(pi.packageName);
+                                listPkg.add(pkg);
                             }
                         rule.related = listPkg.toArray(new String[0]);
 
-                        rule.hosts = dh.getHostCount(rule.uid, true);
+                        Long hosts = hostCounts.get(rule.uid);
+                        rule.hosts = (hosts == null ? 0 : hosts);
+
+                        Integer libraries = libraryCounts.get(rule.packageName);
+                        rule.libraries = (libraries == null ? -1 : libraries);
 
                         rule.updateChanged(default_wifi, default_other, default_roaming);
 
@@ -84,10 +84,14 @@ import net.kollnig.missioncontrol.Common;
 import net.kollnig.missioncontrol.DetailsActivity;
 import net.kollnig.missioncontrol.R;
 import net.kollnig.missioncontrol.analysis.AnalysisException;
+import net.kollnig.missioncontrol.analysis.BulkLibraryAnalyser;
 import net.kollnig.missioncontrol.analysis.TrackerLibraryAnalyser;
+import net.kollnig.missioncontrol.data.HostSet;
 import net.kollnig.missioncontrol.data.InternetBlocklist;
+import net.kollnig.missioncontrol.data.MappedHostSet;
 import net.kollnig.missioncontrol.data.Tracker;
 import net.kollnig.missioncontrol.data.TrackerBlocklist;
+import net.kollnig.missioncontrol.data.TrackerDatabase;
 import net.kollnig.missioncontrol.data.TrackerList;
 
 import org.apache.commons.lang3.StringUtils;
@@ -102,12 +106,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -116,8 +120,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -156,20 +161,34 @@ public class ServiceSinkhole extends VpnService {
     private ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
+    private static final Object hosts_lock = new Object();
     private static long last_hosts_modified = 0;
-    public static Map<String, Boolean> mapHostsBlocked = new ConcurrentHashMap<>();
-    private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
+    public static volatile HostSet hostsList = HostSet.EMPTY; // last read, also while not filtering
+    public static volatile HostSet hostsBlocked = HostSet.EMPTY;
+    private volatile UidSet uidAllowed = UidSet.EMPTY;
+    private volatile UidSet uidKnown = UidSet.EMPTY;
+    private UidResolver uidResolver = null;
     private Map<Integer, Forward> mapForward = new HashMap<>();
     public static ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
     private volatile Looper statsLooper;
+    private volatile Looper filterLooper;
     private volatile CommandHandler commandHandler;
     private volatile LogHandler logHandler;
     private volatile StatsHandler statsHandler;
+    private volatile FilterHandler filterHandler;
+
+    private volatile FilterConfig filterConfig;
+    private final SharedPreferences.OnSharedPreferenceChangeListener filterConfigListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            // Rebuilt as a whole, so that the packet path sees consistent settings
+            filterConfig = FilterConfig.from(prefs);
+            decisionTable.invalidate();
+        }
+    };
 
     private static final int NOTIFY_ENFORCING = 1;
     private static final int NOTIFY_WAITING = 2;
@@ -196,6 +215,9 @@ public class ServiceSinkhole extends VpnService {
     private static final int MSG_STATS_UPDATE = 3;
     private static final int MSG_PACKET = 4;
     private static final int MSG_USAGE = 5;
+    private static final int MSG_FILTER = 6;
+    private static final int MSG_DNS_LOAD = 7;
+    private static final int MSG_LOG_FLUSH = 8;
 
     private enum State {none, waiting, enforcing, stats}
 
@@ -213,7 +235,7 @@ public class ServiceSinkhole extends VpnService {
 
     private native void jni_start(long context, int loglevel);
 
-    private native void jni_run(long context, int tun, boolean fwd53, int rcode);
+    private native void jni_run(long context, int tun, boolean fwd53, int rcode, int workers);
 
     private native void jni_stop(long context);
 
@@ -229,6 +251,8 @@ public class ServiceSinkhole extends VpnService {
 
     private native void jni_done(long context);
 
+    private native void jni_decisions(long context, ByteBuffer buffer);
+
     public static void setPcap(boolean enabled, Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -685,9 +709,15 @@ public class ServiceSinkhole extends VpnService {
             DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupDns();
 
             // Refresh mappings regularly
+            Log.i(TAG, "Address hosts " + ipToHost + " trackers " + ipToTracker + " apps " + uidToApp);
+            Log.i(TAG, "Connection owners " + uidResolver);
             ipToHost.clear();
             ipToTracker.clear();
             uidToApp.clear();
+            decisionTable.invalidate();
+
+            // Analyse tracker libraries of new and updated apps
+            BulkLibraryAnalyser.schedule(ServiceSinkhole.this);
 
             // Check for update
             if (!Util.isPlayStoreInstall(ServiceSinkhole.this) && !Util.isFDroidInstall() && prefs.getBoolean("update_check", true))
@@ -768,8 +798,13 @@ public class ServiceSinkhole extends VpnService {
 
     private final class LogHandler extends Handler {
         public int queue = 0;
+        private int dropped = 0;
 
-        private static final int MAX_QUEUE = 250;
+        private static final int MAX_QUEUE = 2500;
+        private static final int BATCH_DELAY = 250; // milliseconds
+        private static final int MAX_BATCH = 500; // events
+
+        private LogBatch batch = new LogBatch();
 
         public LogHandler(Looper looper) {
             super(looper);
@@ -784,7 +819,8 @@ public class ServiceSinkhole extends VpnService {
 
             synchronized (this) {
                 if (queue > MAX_QUEUE) {
-                    Log.w(TAG, "Log queue full");
+                    if (dropped++ % MAX_BATCH == 0)
+                        Log.w(TAG, "Log queue full dropped=" + dropped);
                     return;
                 }
 
@@ -801,7 +837,8 @@ public class ServiceSinkhole extends VpnService {
 
             synchronized (this) {
                 if (queue > MAX_QUEUE) {
-                    Log.w(TAG, "Log queue full");
+                    if (dropped++ % MAX_BATCH == 0)
+                        Log.w(TAG, "Log queue full dropped=" + dropped);
                     return;
                 }
 
@@ -823,6 +860,10 @@ public class ServiceSinkhole extends VpnService {
                         usage((Usage) msg.obj);
                         break;
 
+                    case MSG_LOG_FLUSH:
+                        flush();
+                        return;
+
                     default:
                         Log.e(TAG, "Unknown log message=" + msg.what);
                 }
@@ -831,6 +872,26 @@ public class ServiceSinkhole extends VpnService {
                     queue--;
                 }
 
+                // Write behind, coalescing events over a short window
+                if (batch.size() >= MAX_BATCH)
+                    flush();
+                else if (!batch.isEmpty() && !hasMessages(MSG_LOG_FLUSH))
+                    sendEmptyMessageDelayed(MSG_LOG_FLUSH, BATCH_DELAY);
+
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+
+        private void flush() {
+            removeMessages(MSG_LOG_FLUSH);
+            if (batch.isEmpty())
+                return;
+
+            LogBatch current = batch;
+            batch = new LogBatch();
+            try {
+                DatabaseHelper.getInstance(ServiceSinkhole.this).writeBatch(current);
             } catch (Throwable ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
@@ -838,9 +899,9 @@ public class ServiceSinkhole extends VpnService {
 
         private void log(Packet packet, int connection, boolean interactive) {
             // Get settings
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            boolean log = prefs.getBoolean("log", false);
-            boolean log_app = prefs.getBoolean("log_app", true);
+            FilterConfig config = filterConfig;
+            boolean log = config.log;
+            boolean log_app = config.logApp;
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
@@ -849,43 +910,35 @@ public class ServiceSinkhole extends VpnService {
 
             int uncertain = 0;
             boolean isTracker = false;
-            try(Cursor lookup = dh.getQAName(packet.uid, packet.daddr, false)) {
-                uncertain = (lookup != null
-                        && lookup.getCount() > 1) ? 1 : 0;
-
-                // Loop until we find tracker or reach last entry
-                if (lookup != null) {
-                    Pair<Tracker, String> foundTracker = new Pair<>(NO_TRACKER, null);
-
-                    while (lookup.moveToNext()) {
-                        dname = lookup.getString(lookup.getColumnIndex("qname"));
-                        if (dname != null)  {
-                            originalDname = dname;
-
-                            String aname = lookup.getString(lookup.getColumnIndex("aname"));
-                            Pair<Tracker, String> p = getDecloakedTracker(dname, aname);
-
-                            if (foundTracker.first == NO_TRACKER
-                                    && p.first != null) { // store found tracker
-                                isTracker = true;
-                                foundTracker = p;
-                            }
+            DnsCache.Answer[] answers = getAnswers(packet.daddr, dh);
+            uncertain = (answers.length > 1 ? 1 : 0);
 
-                            if (foundTracker.first != NO_TRACKER
-                                    && (p.first == null // could have uncertain tracker company if no company found for an observed domain
-                                    || !Objects.equals(foundTracker.first.name, p.first.name)) // we have an uncertain tracker company
-                                    && uncertain == 1) {
-                                uncertain = 2;
-                                break;
-                            }
-                        }
-                    }
+            // Loop until we find tracker or reach last entry
+            Pair<Tracker, String> foundTracker = new Pair<>(NO_TRACKER, null);
+            for (DnsCache.Answer answer : answers) {
+                dname = answer.qname;
+                originalDname = dname;
+
+                Pair<Tracker, String> p = getDecloakedTracker(dname, answer.aname);
 
-                    if (foundTracker.first != NO_TRACKER)
-                        dname = foundTracker.second;
+                if (foundTracker.first == NO_TRACKER
+                        && p.first != null) { // store found tracker
+                    isTracker = true;
+                    foundTracker = p;
+                }
+
+                if (foundTracker.first != NO_TRACKER
+                        && (p.first == null // could have uncertain tracker company if no company found for an observed domain
+                        || !Objects.equals(foundTracker.first.name, p.first.name)) // we have an uncertain tracker company
+                        && uncertain == 1) {
+                    uncertain = 2;
+                    break;
                 }
             }
 
+            if (foundTracker.first != NO_TRACKER)
+                dname = foundTracker.second;
+
             // Check if we have additional information from SNI
             if (packet.data != null
                     && !packet.data.isEmpty()) {
@@ -903,21 +956,47 @@ public class ServiceSinkhole extends VpnService {
 
             // Fallback: Check for IP-based tracking
             if (dname == null
-                    && TrackerList.trackingIps.contains(packet.daddr))
+                    && TrackerList.isTrackingIp(packet.daddr))
                 isTracker = true;
 
             // Traffic log
             if (log)
-                dh.insertLog(packet, dname, connection, interactive);
+                batch.addLog(packet, dname, connection, interactive);
 
             // Application log
             if (log_app && isTracker && packet.uid >= 0 &&
                     !(packet.uid == 0 && (packet.protocol == 6 || packet.protocol == 17) && packet.dport == 53)) {
-                if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
-                    packet.dport = 0;
+                // The packet is still referenced by the traffic log, don't modify it
+                int dport = (packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */ ? packet.dport : 0);
+
+                // Classify once, so that readers do not need to match hosts again
+                Tracker tracker = TrackerList.findTracker(dname == null ? packet.daddr : dname);
+                batch.addAccess(packet, dname, dport, uncertain, tracker, TrackerList.getListVersion());
+                if (tracker != null)
+                    TrackerList.getInstance(ServiceSinkhole.this).addSeenTracker(packet.uid, tracker, packet.time);
+            }
+        }
 
-                dh.updateAccess(packet, dname, -1, uncertain);
+        private DnsCache.Answer[] getAnswers(String daddr, DatabaseHelper dh) {
+            DnsCache.Answer[] answers = dnsCache.get(daddr);
+            if (answers != null)
+                return answers;
+
+            // Not seen since the service started, or evicted since
+            List<DnsCache.Answer> listAnswer = new ArrayList<>();
+            try (Cursor lookup = dh.getQAName(daddr, false)) {
+                int colQName = lookup.getColumnIndex("qname");
+                int colAName = lookup.getColumnIndex("aname");
+                int colTime = lookup.getColumnIndex("time");
+                int colTTL = lookup.getColumnIndex("ttl");
+                while (lookup.moveToNext())
+                    listAnswer.add(new DnsCache.Answer(
+                            lookup.getString(colQName),
+                            lookup.getString(colAName),
+                            lookup.getLong(colTime),
+                            lookup.getLong(colTTL)));
             }
+            return listAnswer.toArray(new DnsCache.Answer[0]);
         }
 
         private Pair<Tracker, String> getDecloakedTracker(String qname, DatabaseHelper dh) {
@@ -950,17 +1029,97 @@ public class ServiceSinkhole extends VpnService {
 
         private void usage(Usage usage) {
             if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-                boolean filter = prefs.getBoolean("filter", true);
-                boolean log_app = prefs.getBoolean("log_app", true);
-                boolean track_usage = prefs.getBoolean("track_usage", false);
-                if (filter && log_app && track_usage) {
+                FilterConfig config = filterConfig;
+                if (config.filter && config.logApp && config.trackUsage) {
                     DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
                     String dname = dh.getQName(usage.Uid, usage.DAddr);
                     Log.i(TAG, "Usage account " + usage + " dname=" + dname);
-                    dh.updateUsage(usage, dname);
+                    batch.addUsage(usage, dname);
+                }
+            }
+        }
+    }
+
+    private final class FilterHandler extends Handler {
+        private static final int BATCH_DELAY = 100; // milliseconds
+
+        private List<ResourceRecord> pending = new ArrayList<>();
+
+        public FilterHandler(Looper looper) {
+            super(looper);
+        }
+
+        public void queue(ResourceRecord rr) {
+            synchronized (this) {
+                // Coalesce answers received in a burst into one update
+                pending.add(rr);
+                if (pending.size() == 1)
+                    sendEmptyMessageDelayed(MSG_FILTER, BATCH_DELAY);
+            }
+        }
+
+        public void load() {
+            sendEmptyMessage(MSG_DNS_LOAD);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            try {
+                switch (msg.what) {
+                    case MSG_FILTER:
+                        filter();
+                        break;
+
+                    case MSG_DNS_LOAD:
+                        loadDns();
+                        break;
+
+                    default:
+                        Log.e(TAG, "Unknown filter message=" + msg.what);
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+        }
+
+        private void filter() {
+            List<ResourceRecord> records;
+            synchronized (this) {
+                records = pending;
+                pending = new ArrayList<>();
+            }
+
+            // Write behind, answers are already cached
+            DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+            for (ResourceRecord rr : records)
+                dh.insertDns(rr);
+        }
+
+        private void loadDns() {
+            long now = new Date().getTime();
+            try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getDns()) {
+                int colTime = cursor.getColumnIndex("time");
+                int colQName = cursor.getColumnIndex("qname");
+                int colAName = cursor.getColumnIndex("aname");
+                int colResource = cursor.getColumnIndex("resource");
+                int colTTL = cursor.getColumnIndex("ttl");
+                while (cursor.moveToNext()) {
+                    DnsCache.Answer answer = new DnsCache.Answer(
+                            cursor.getString(colQName),
+                            cursor.getString(colAName),
+                            cursor.getLong(colTime),
+                            cursor.getLong(colTTL));
+                    if (!answer.isExpired(now))
+                        dnsCache.put(cursor.getString(colResource), answer);
                 }
             }
+
+            // Forget addresses looked up before the answers were known
+            ipToHost.clear();
+            ipToTracker.clear();
+            decisionTable.invalidate();
+
+            Log.i(TAG, "Loaded DNS answers for " + dnsCache.size() + " addresses");
         }
     }
 
@@ -1580,21 +1739,22 @@ public class ServiceSinkhole extends VpnService {
         if (filter) {
             prepareUidAllowed(listAllowed, listRule);
             prepareHostsBlocked(ServiceSinkhole.this);
-            prepareUidIPFilters(null);
             prepareForwarding();
         } else {
             lock.writeLock().lock();
-            mapUidAllowed.clear();
-            mapUidKnown.clear();
-            mapHostsBlocked.clear();
-            mapUidIPFilters.clear();
+            uidAllowed = UidSet.EMPTY;
+            uidKnown = UidSet.EMPTY;
+            hostsBlocked = HostSet.EMPTY;
             mapForward.clear();
             lock.writeLock().unlock();
         }
 
+        decisionTable.invalidate();
+
         if (log || log_app || filter) {
             int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
             final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+            final int workers = Integer.parseInt(prefs.getString("native_workers", "1"));
             if (prefs.getBoolean("socks5_enabled", false))
                 jni_socks5(
                         prefs.getString("socks5_addr", ""),
@@ -1612,7 +1772,7 @@ public class ServiceSinkhole extends VpnService {
                     @Override
                     public void run() {
                         Log.i(TAG, "Running tunnel context=" + jni_context);
-                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode);
+                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode, workers);
                         Log.i(TAG, "Tunnel exited");
                         tunnelThread = null;
                     }
@@ -1646,6 +1806,7 @@ public class ServiceSinkhole extends VpnService {
             tunnelThread = null;
 
             jni_clear(jni_context);
+            uidResolver.clear();
 
             Log.i(TAG, "Stopped tunnel thread");
         }
@@ -1653,55 +1814,89 @@ public class ServiceSinkhole extends VpnService {
 
     private void unprepare() {
         lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        mapHostsBlocked.clear();
-        mapUidIPFilters.clear();
+        uidAllowed = UidSet.EMPTY;
+        uidKnown = UidSet.EMPTY;
+        hostsBlocked = HostSet.EMPTY;
         mapForward.clear();
         lock.writeLock().unlock();
+
+        decisionTable.invalidate();
     }
 
     private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
         lock.writeLock().lock();
 
-        mapUidAllowed.clear();
+        List<Integer> uids = new ArrayList<>();
         for (Rule rule : listAllowed)
-            mapUidAllowed.put(rule.uid, true);
+            uids.add(rule.uid);
+        uidAllowed = UidSet.of(uids);
 
-        mapUidKnown.clear();
+        uids.clear();
         for (Rule rule : listRule)
-            mapUidKnown.put(rule.uid, rule.uid);
+            uids.add(rule.uid);
+        uidKnown = UidSet.of(uids);
 
         lock.writeLock().unlock();
     }
 
     public static void prepareHostsBlocked(Context c) {
-        BufferedReader br = null;
-        InputStreamReader is = null;
+        // Not the class lock, which is taken for the wake lock on the main thread
+        synchronized (hosts_lock) {
+            prepareHostsBlockedLocked(c);
+        }
+    }
+
+    private static void prepareHostsBlockedLocked(Context c) {
         File hosts = new File(c.getFilesDir(), "hosts.txt");
+        File compiled = new File(c.getFilesDir(), "hosts.bin");
 
+        // The new list is built aside, while lookups continue on the old one, and then swapped in
         try {
             if (!hosts.exists() || !hosts.canRead()) {
-                if (mapHostsBlocked.size() > 0) {
+                if (last_hosts_modified == 0 && hostsList.size() > 0) {
                     Log.i(TAG, "Hosts file unchanged");
+                    hostsBlocked = hostsList;
                     return;
                 }
-                is = new InputStreamReader(c.getAssets().open("hosts.txt"));
+
+                // Bundled hosts file, compiled at build time
+                last_hosts_modified = 0;
+                hostsList = TrackerDatabase.getInstance(c).getHosts();
             } else {
                 boolean changed = (hosts.lastModified() != last_hosts_modified);
-                if (!changed && mapHostsBlocked.size() > 0) {
+                if (!changed && hostsList.size() > 0) {
                     Log.i(TAG, "Hosts file unchanged");
+                    hostsBlocked = hostsList;
                     return;
                 }
                 last_hosts_modified = hosts.lastModified();
-                is = new FileReader(hosts);
+
+                // Reuse compiled hosts file, if still up to date
+                MappedHostSet set = null;
+                if (compiled.exists())
+                    try {
+                        set = MappedHostSet.open(compiled);
+                    } catch (IOException ex) {
+                        Log.w(TAG, "Compiled hosts file unusable: " + ex);
+                    }
+                if (set == null || set.getStamp() != hosts.lastModified()) {
+                    compileHostsBlocked(hosts, compiled);
+                    set = MappedHostSet.open(compiled);
+                }
+                hostsList = set;
             }
+            hostsBlocked = hostsList;
+            Log.i(TAG, hostsBlocked.size() + " hosts read");
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+    }
 
-            lock.writeLock().lock();
-            mapHostsBlocked.clear();
+    private static void compileHostsBlocked(File hosts, File compiled) throws IOException {
+        Set<String> sorted = new TreeSet<>();
+        sorted.add("test.netguard.me");
 
-            int count = 0;
-            br = new BufferedReader(is);
+        try (BufferedReader br = new BufferedReader(new FileReader(hosts))) {
             String line;
             while ((line = br.readLine()) != null) {
                 int hash = line.indexOf('#');
@@ -1710,112 +1905,16 @@ public class ServiceSinkhole extends VpnService {
                 line = line.trim();
                 if (line.length() > 0) {
                     String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
-                    } else
+                    if (words.length == 2)
+                        sorted.add(words[1]);
+                    else
                         Log.i(TAG, "Invalid hosts file line: " + line);
                 }
             }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
-        } catch (IOException ex) {
-            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-        } finally {
-            if (br != null)
-                try {
-                    br.close();
-                } catch (IOException exex) {
-                    Log.e(TAG, exex.toString() + "\n" + Log.getStackTraceString(exex));
-                }
-            if (is != null)
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
         }
 
-        lock.writeLock().unlock();
-    }
-
-    private void prepareUidIPFilters(String dname) {
-        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
-
-        lock.writeLock().lock();
-
-        if (dname == null) // reset mechanism, called from startNative()
-            mapUidIPFilters.clear();
-
-        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname)) {
-            int colUid = cursor.getColumnIndex("uid");
-            int colVersion = cursor.getColumnIndex("version");
-            int colProtocol = cursor.getColumnIndex("protocol");
-            int colDAddr = cursor.getColumnIndex("daddr");
-            int colResource = cursor.getColumnIndex("resource");
-            int colDPort = cursor.getColumnIndex("dport");
-            int colBlock = cursor.getColumnIndex("block");
-            int colTime = cursor.getColumnIndex("time");
-            int colTTL = cursor.getColumnIndex("ttl");
-            while (cursor.moveToNext()) {
-                int uid = cursor.getInt(colUid);
-                int version = cursor.getInt(colVersion);
-                int protocol = cursor.getInt(colProtocol);
-                String daddr = cursor.getString(colDAddr);
-                String dresource = (cursor.isNull(colResource) ? null : cursor.getString(colResource));
-                int dport = cursor.getInt(colDPort);
-                boolean block = (cursor.getInt(colBlock) > 0);
-                long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
-                long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
-
-                if (isLockedDown(last_metered)) {
-                    String[] pkg = getPackageManager().getPackagesForUid(uid);
-                    if (pkg != null && pkg.length > 0) {
-                        if (!lockdown.getBoolean(pkg[0], false))
-                            continue;
-                    }
-                }
-
-                IPKey key = new IPKey(version, protocol, dport, uid);
-                synchronized (mapUidIPFilters) {
-                    if (!mapUidIPFilters.containsKey(key))
-                        mapUidIPFilters.put(key, new HashMap());
-
-                    try {
-                        String name = (dresource == null ? daddr : dresource);
-
-                        // Firewall operates on IP layer, so we need numeric IP
-                        if (Util.isNumericAddress(name)) {
-                            InetAddress iname = InetAddress.getByName(name);
-                            if (version == 4 && !(iname instanceof Inet4Address))
-                                continue;
-                            if (version == 6 && !(iname instanceof Inet6Address))
-                                continue;
-
-                            boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                            if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                                IPRule rule = new IPRule(key, name + "/" + iname, block, time + ttl);
-                                mapUidIPFilters.get(key).put(iname, rule);
-                                if (exists)
-                                    Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                            } else if (exists) {
-                                mapUidIPFilters.get(key).get(iname).updateExpires(time + ttl);
-                                if (dname != null && ttl > 60 * 1000L)
-                                    Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                            } else {
-                                if (dname != null)
-                                    Log.i(TAG, "Ignored " + key + " " + daddr + "/" + dresource + "=" + block);
-                            }
-                        } else
-                            Log.w(TAG, "Address not numeric " + name);
-                    } catch (UnknownHostException ex) {
-                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-                }
-            }
-        }
-
-        lock.writeLock().unlock();
+        MappedHostSet.write(sorted, hosts.lastModified(), compiled);
+        Log.i(TAG, "Compiled " + sorted.size() + " hosts");
     }
 
     private void prepareForwarding() {
@@ -1960,15 +2059,28 @@ public class ServiceSinkhole extends VpnService {
 
     // Called from native code
     private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
-            Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
+        Log.d(TAG, "New IP " + rr);
 
-            if (Util.isNumericAddress(rr.Resource)) { // make sure correct format
-                ipToHost.remove(rr.Resource);
-                ipToTracker.remove(rr.Resource);
-            }
+        if (Util.isNumericAddress(rr.Resource)) { // make sure correct format
+            int ttl = Math.max(rr.TTL, filterConfig.ttl);
+            dnsCache.put(rr.Resource, new DnsCache.Answer(rr.QName, rr.AName, rr.Time, ttl * 1000L));
+
+            ipToHost.remove(rr.Resource);
+            ipToTracker.remove(rr.Resource);
         }
+
+        filterHandler.queue(rr);
+    }
+
+    public static void clearDnsCache() {
+        dnsCache.clear();
+        ipToHost.clear();
+        ipToTracker.clear();
+        decisionTable.invalidate();
+    }
+
+    public static void invalidateDecisions() {
+        decisionTable.invalidate();
     }
 
     // Called from native code
@@ -1978,21 +2090,8 @@ public class ServiceSinkhole extends VpnService {
 
     // Called from native code
     @TargetApi(Build.VERSION_CODES.Q)
-    private int getUidQ(int version, int protocol, String saddr, int sport, String daddr, int dport) {
-        if (protocol != 6 /* TCP */ && protocol != 17 /* UDP */)
-            return Process.INVALID_UID;
-
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        if (cm == null)
-            return Process.INVALID_UID;
-
-        InetSocketAddress local = new InetSocketAddress(saddr, sport);
-        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
-
-        Log.i(TAG, "Get uid local=" + local + " remote=" + remote);
-        int uid = cm.getConnectionOwnerUid(protocol, local, remote);
-        Log.i(TAG, "Get uid=" + uid);
-        return uid;
+    private int getUidQ(int version, int protocol, byte[] saddr, int sport, byte[] daddr, int dport) {
+        return uidResolver.getUid(protocol, saddr, sport, daddr, dport);
     }
 
     private boolean isSupported(int protocol) {
@@ -2002,27 +2101,29 @@ public class ServiceSinkhole extends VpnService {
                 protocol == 17 /* UDP */);
     }
 
-    static ConcurrentHashMap<Integer, String> uidToApp = new ConcurrentHashMap<>();
-    static ConcurrentHashMap<String, Expiring<String>> ipToHost = new ConcurrentHashMap<>();
-    static ConcurrentHashMap<String, Expiring<Tracker>> ipToTracker = new ConcurrentHashMap<>();
+    static final ExpiringCache<Integer, String> uidToApp = new ExpiringCache<>(1024, 4);
+    static final ExpiringCache<String, String> ipToHost = new ExpiringCache<>(8192, 16);
+    static final ExpiringCache<String, Tracker> ipToTracker = new ExpiringCache<>(8192, 16);
+    static final DnsCache dnsCache = new DnsCache();
+    static final DecisionTable decisionTable = new DecisionTable(4096);
     static String NO_DNAME = "null"; // use a String, unequal the real null
     static Tracker NO_TRACKER = new Tracker(null, null, 0);
 
     // Called from native code
-    private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    private int isAddressAllowed(Packet packet) {
+        FilterConfig config = filterConfig;
 
         lock.readLock().lock();
 
         packet.allowed = false;
-        if (prefs.getBoolean("filter", true)) {
+        if (config.filter) {
             // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
-            if (packet.protocol == 17 /* UDP */ && !prefs.getBoolean("filter_udp", true)) {
+            if (packet.protocol == 17 /* UDP */ && !config.filterUdp) {
                 // Allow unfiltered UDP
                 packet.allowed = true;
                 Log.i(TAG, "Allowing UDP " + packet);
             } else if (packet.uid < 2000 &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
+                    !uidKnown.contains(packet.uid) && isSupported(packet.protocol)) {
                 // Allow unknown system traffic
                 packet.allowed = true;
                 Log.w(TAG, "Allowing unknown system " + packet);
@@ -2037,9 +2138,8 @@ public class ServiceSinkhole extends VpnService {
                     Log.d(TAG, "Found SNI in isAddressAllowed: " + packet.data);
 
                 // Check if tracker is known
-                if ((!Util.isPlayStoreInstall()
-                        || prefs.getBoolean("log_logcat", false))
-                    && blockKnownTracker(packet.daddr, packet.uid)) {
+                if (config.checkTrackers
+                    && blockKnownTracker(packet.daddr, packet.uid, config)) {
                         filtered = true;
                         packet.allowed = false;
                 }
@@ -2055,90 +2155,93 @@ public class ServiceSinkhole extends VpnService {
             }
         }
 
-        Allowed allowed = null;
+        int verdict = DecisionTable.VERDICT_BLOCK;
         if (packet.allowed)
             if (mapForward.containsKey(packet.dport)) {
                 Forward fwd = mapForward.get(packet.dport);
                 if (fwd.ruid == packet.uid) {
-                    allowed = new Allowed();
+                    verdict = DecisionTable.VERDICT_ALLOW;
                 } else {
-                    allowed = new Allowed(fwd.raddr, fwd.rport);
+                    verdict = DecisionTable.VERDICT_REDIRECT;
+                    packet.raddr = fwd.raddr;
+                    packet.rport = fwd.rport;
                     packet.data = "> " + fwd.raddr + "/" + fwd.rport;
                 }
             } else
-                allowed = new Allowed();
+                verdict = DecisionTable.VERDICT_ALLOW;
 
         lock.readLock().unlock();
 
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", true))
+        if (config.log || config.logApp)
             if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
                 if (packet.uid != Process.myUid())
                     logPacket(packet);
 
-        return allowed;
+        // Let native code repeat the decision without calling back
+        if (verdict != DecisionTable.VERDICT_REDIRECT && packet.uid != Process.myUid()) {
+            verdict |= DecisionTable.FLAG_KEEP;
+            if (isLogged(packet.daddr, config))
+                verdict |= DecisionTable.FLAG_LOG;
+        }
+
+        return verdict;
     }
 
-    private boolean blockKnownTracker(String daddr, int uid) {
-        Tracker tracker = null;
-        Expiring<Tracker> expiringTracker = ipToTracker.get(daddr);
-        if (expiringTracker != null) {
-            tracker = expiringTracker.getOrExpired();
+    /**
+     * Whether packets to an address could be logged, see {@link LogHandler}. Without the traffic
+     * log, only packets to trackers are logged, and to addresses not classified yet.
+     */
+    private boolean isLogged(String daddr, FilterConfig config) {
+        if (config.log)
+            return true;
+        if (!config.logApp)
+            return false;
+        Tracker tracker = ipToTracker.get(daddr);
+        return (tracker != NO_TRACKER || TrackerList.isTrackingIp(daddr));
+    }
 
-            if (tracker == null) // expired
-                ipToTracker.remove(daddr);
-        }
+    private boolean blockKnownTracker(String daddr, int uid, FilterConfig config) {
+        Tracker tracker = ipToTracker.get(daddr);
 
         if (tracker == null) {
             // Check if IP known
-            String dname = null;
-            Expiring<String> expiringHost = ipToHost.get(daddr);
-            if (expiringHost != null) {
-                dname = expiringHost.getOrExpired();
-
-                if (dname == null) // expired
-                    ipToHost.remove(daddr);
-            }
+            String dname = ipToHost.get(daddr);
 
             if (dname == null) {
-                // Retrieve dname from DB
-                DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
-                long time;
-                long ttl;
-                try (Cursor lookup = dh.getQAName(uid, daddr, true)) {
-                    time = new Date().getTime();
-                    ttl = 7 * 24 * 3600 * 1000L;
-
-                    // Loop through entries and pick the one that is related to tracking
-                    if (lookup != null) {
-                        while (lookup.moveToNext()) {
-                            // Get DNS expiry details
-                            int colTime = lookup.getColumnIndex("time");
-                            int colTTL = lookup.getColumnIndex("ttl");
-                            if (!lookup.isNull(colTime))
-                                time = lookup.getLong(colTime);
-                            if (!lookup.isNull(colTTL))
-                                ttl = lookup.getLong(colTTL);
-
-                            // Check tracker
-                            String aname = lookup.getString(lookup.getColumnIndex("aname"));
-                            dname = lookup.getString(lookup.getColumnIndex("qname"));
-                            tracker = TrackerList.findTracker(dname);
-
-                            // If no tracker found, try DNS uncloaking
-                            if (tracker == null
-                                    && aname != null) {
-                                tracker = TrackerList.findTracker(aname);
-
-                                if (tracker != null) {
-                                    dname = aname;
-                                    Log.d(TAG, "Uncloaked: " + dname + " -> " + aname);
-                                }
-                            }
+                // Retrieve dname from cached answers, never from the database
+                long now = new Date().getTime();
+                DnsCache.Answer[] answers = dnsCache.get(daddr);
+
+                // Answers might have been evicted from the cache, so check again soon
+                long expires = now + (answers == null ? 60 * 1000L : 7 * 24 * 3600 * 1000L);
+
+                // Loop through entries and pick the one that is related to tracking
+                if (answers != null) {
+                    for (DnsCache.Answer answer : answers) {
+                        if (answer.isExpired(now))
+                            continue;
+
+                        // Get DNS expiry details
+                        expires = answer.getExpires();
+
+                        // Check tracker
+                        dname = answer.qname;
+                        tracker = TrackerList.findTracker(dname);
 
-                            // If tracker found, seek no further
-                            if (tracker != null)
-                                break;
+                        // If no tracker found, try DNS uncloaking
+                        if (tracker == null
+                                && answer.aname != null) {
+                            tracker = TrackerList.findTracker(answer.aname);
+
+                            if (tracker != null) {
+                                Log.d(TAG, "Uncloaked: " + dname + " -> " + answer.aname);
+                                dname = answer.aname;
+                            }
                         }
+
+                        // If tracker found, seek no further
+                        if (tracker != null)
+                            break;
                     }
                 }
 
@@ -2149,24 +2252,23 @@ public class ServiceSinkhole extends VpnService {
                     tracker = NO_TRACKER;
 
                 // Save dname and tracker
-                ipToHost.put(daddr, new Expiring<>(dname, time + ttl));
-                ipToTracker.put(daddr, new Expiring<>(tracker, time + ttl));
+                ipToHost.put(daddr, dname, expires);
+                ipToTracker.put(daddr, tracker, expires);
             }
 
             // If we can't resolve domain, use IP-based blocklist as fallback
             if (dname == null)
-                if (TrackerList.trackingIps.contains(daddr))
+                if (TrackerList.isTrackingIp(daddr))
                     tracker = TrackerList.findTracker(daddr);
         }
 
         // Log or block?
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        if (prefs.getBoolean("log_logcat", false)) {
+        if (config.logLogcat) {
             String app = uidToApp.get(uid);
             if (app == null) {
                 PackageManager pm = getPackageManager();
                 app = Common.getAppName(pm, uid);
-                uidToApp.put(uid, app);
+                uidToApp.put(uid, app, ExpiringCache.NEVER);
             }
             assert tracker != null;
             Log.i("TC-Log", app + " " + daddr + " " + ipToHost.get(daddr) + " " + tracker.getName());
@@ -2407,9 +2509,13 @@ public class ServiceSinkhole extends VpnService {
             Util.logExtras(intent);
 
             try {
+                String packageName = (intent.getData() == null ? null : intent.getData().getSchemeSpecificPart());
                 if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
                     // Application added
-                    Rule.clearCache(context);
+                    if (packageName == null)
+                        Rule.clearCache(context);
+                    else
+                        Rule.clearCache(packageName, context);
 
                     if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
                         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -2429,12 +2535,18 @@ public class ServiceSinkhole extends VpnService {
                     reload("package added", context, false);
 
                 } else if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
-                    // Application removed
-                    Rule.clearCache(context);
+                    // Application removed, or replaced, its connections belong to no one now
+                    if (packageName == null)
+                        Rule.clearCache(context);
+                    else
+                        Rule.clearCache(packageName, context);
+                    uidResolver.clear();
 
                     if (intent.getBooleanExtra(Intent.EXTRA_DATA_REMOVED, false)) {
+                        if (packageName != null)
+                            DatabaseHelper.getInstance(context).clearLibrary(packageName);
+
                         // Remove settings
-                        String packageName = intent.getData().getSchemeSpecificPart();
                         Log.i(TAG, "Deleting settings package=" + packageName);
                         context.getSharedPreferences("wifi", Context.MODE_PRIVATE).edit().remove(packageName).apply();
                         context.getSharedPreferences("other", Context.MODE_PRIVATE).edit().remove(packageName).apply();
@@ -2546,6 +2658,9 @@ public class ServiceSinkhole extends VpnService {
         startForeground(NOTIFY_WAITING, getWaitingNotification());
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        filterConfig = FilterConfig.from(prefs);
+        prefs.registerOnSharedPreferenceChangeListener(filterConfigListener);
+        uidResolver = new UidResolver(this);
 
         if (jni_context != 0) {
             Log.w(TAG, "Create with context=" + jni_context);
@@ -2558,6 +2673,7 @@ public class ServiceSinkhole extends VpnService {
 
         // Native init
         jni_context = jni_init(Build.VERSION.SDK_INT);
+        jni_decisions(jni_context, decisionTable.getBuffer());
         Log.i(TAG, "Created context=" + jni_context);
         boolean pcap = prefs.getBoolean("pcap", false);
         setPcap(pcap, this);
@@ -2568,17 +2684,22 @@ public class ServiceSinkhole extends VpnService {
         HandlerThread commandThread = new HandlerThread(getString(R.string.app_name) + " command", Process.THREAD_PRIORITY_FOREGROUND);
         HandlerThread logThread = new HandlerThread(getString(R.string.app_name) + " log", Process.THREAD_PRIORITY_BACKGROUND);
         HandlerThread statsThread = new HandlerThread(getString(R.string.app_name) + " stats", Process.THREAD_PRIORITY_BACKGROUND);
+        HandlerThread filterThread = new HandlerThread(getString(R.string.app_name) + " filter", Process.THREAD_PRIORITY_BACKGROUND);
         commandThread.start();
         logThread.start();
         statsThread.start();
+        filterThread.start();
 
         commandLooper = commandThread.getLooper();
         logLooper = logThread.getLooper();
         statsLooper = statsThread.getLooper();
+        filterLooper = filterThread.getLooper();
 
         commandHandler = new CommandHandler(commandLooper);
         logHandler = new LogHandler(logLooper);
         statsHandler = new StatsHandler(statsLooper);
+        filterHandler = new FilterHandler(filterLooper);
+        filterHandler.load();
 
         // Listen for user switches
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
@@ -2847,8 +2968,12 @@ public class ServiceSinkhole extends VpnService {
         synchronized (this) {
             Log.i(TAG, "Destroy");
             commandLooper.quit();
-            logLooper.quit();
+            logHandler.sendEmptyMessage(MSG_LOG_FLUSH);
+            logLooper.quitSafely();
             statsLooper.quit();
+            filterLooper.quit();
+
+            PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(filterConfigListener);
 
             for (Command command : Command.values())
                 commandHandler.removeMessages(command.ordinal());
@@ -2989,7 +3114,7 @@ public class ServiceSinkhole extends VpnService {
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, hostsBlocked.size());
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.notify(NOTIFY_ENFORCING, notification);
     }
@@ -3249,100 +3374,6 @@ public class ServiceSinkhole extends VpnService {
         }
     }
 
-    private class IPKey {
-        int version;
-        int protocol;
-        int dport;
-        int uid;
-
-        public IPKey(int version, int protocol, int dport, int uid) {
-            this.version = version;
-            this.protocol = protocol;
-            // Only TCP (6) and UDP (17) have port numbers
-            this.dport = (protocol == 6 || protocol == 17 ? dport : 0);
-            this.uid = uid;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof IPKey))
-                return false;
-            IPKey other = (IPKey) obj;
-            return (this.version == other.version &&
-                    this.protocol == other.protocol &&
-                    this.dport == other.dport &&
-                    this.uid == other.uid);
-        }
-
-        @Override
-        public int hashCode() {
-            return (version << 40) | (protocol << 32) | (dport << 16) | uid;
-        }
-
-        @Override
-        public String toString() {
-            return "v" + version + " p" + protocol + " port=" + dport + " uid=" + uid;
-        }
-    }
-
-    private class Expiring<T> {
-        private T t;
-        private long expires;
-
-        public Expiring(T t, long expires) {
-            this.t = t;
-            this.expires = expires;
-        }
-
-        public boolean isExpired() {
-            return System.currentTimeMillis() > this.expires;
-        }
-
-        public T getOrExpired() {
-            if (isExpired())
-                return null;
-
-            return t;
-        }
-    }
-
-    private class IPRule {
-        private IPKey key;
-        private String name;
-        private boolean block;
-        private long expires;
-
-        public IPRule(IPKey key, String name, boolean block, long expires) {
-            this.key = key;
-            this.name = name;
-            this.block = block;
-            this.expires = expires;
-        }
-
-        public boolean isBlocked() {
-            return this.block;
-        }
-
-        public boolean isExpired() {
-            return System.currentTimeMillis() > this.expires;
-        }
-
-        public void updateExpires(long expires) {
-            this.expires = Math.max(this.expires, expires);
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            IPRule other = (IPRule) obj;
-            return (this.block == other.block && this.expires == other.expires);
-        }
-
-        @Override
-        public String toString() {
-            return this.key + " " + this.name;
-        }
-    }
-
     public static void run(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.run);
@@ -0,0 +1,169 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Resolves the owners of connections with {@link ConnectivityManager#getConnectionOwnerUid},
+ * for native code on Android Q and later.
+ * <p>
+ * Owners are cached briefly by protocol and local port, so that the retransmitted and further
+ * packets of a new connection cost no binder call. A cached owner is only used if the addresses
+ * and the remote port match as well. Addresses are passed in binary form, as in the packets.
+ */
+public class UidResolver {
+    private static final String TAG = "TrackerControl.Uid";
+    private static final int CACHE_SIZE = 512; // connections
+    private static final long TTL = 5 * 1000L; // milliseconds
+
+    private final ConnectivityManager cm;
+    private final SparseArray<Entry> cache = new SparseArray<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long calls = 0;
+    private long binderNanos = 0;
+    private long binderMaxNanos = 0;
+
+    private static final class Entry {
+        final byte[] saddr;
+        final byte[] daddr;
+        final int dport;
+        final int uid;
+        final long expires;
+
+        Entry(byte[] saddr, byte[] daddr, int dport, int uid, long expires) {
+            this.saddr = saddr;
+            this.daddr = daddr;
+            this.dport = dport;
+            this.uid = uid;
+            this.expires = expires;
+        }
+    }
+
+    public UidResolver(Context context) {
+        cm = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Get the owner of a connection
+     *
+     * @param protocol IP protocol, TCP or UDP
+     * @param saddr    Local address, 4 or 16 bytes
+     * @param sport    Local port
+     * @param daddr    Remote address, 4 or 16 bytes
+     * @param dport    Remote port
+     * @return uid or {@link Process#INVALID_UID}
+     */
+    @TargetApi(Build.VERSION_CODES.Q)
+    public int getUid(int protocol, byte[] saddr, int sport, byte[] daddr, int dport) {
+        if (protocol != 6 /* TCP */ && protocol != 17 /* UDP */)
+            return Process.INVALID_UID;
+
+        int key = (protocol << 16) | (sport & 0xffff);
+        long now = SystemClock.elapsedRealtime();
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.expires > now && entry.dport == dport &&
+                    Arrays.equals(entry.saddr, saddr) && Arrays.equals(entry.daddr, daddr)) {
+                hits++;
+                return entry.uid;
+            }
+            misses++;
+        }
+
+        if (cm == null)
+            return Process.INVALID_UID;
+
+        InetSocketAddress local;
+        InetSocketAddress remote;
+        try {
+            // Binary addresses are not resolved
+            local = new InetSocketAddress(InetAddress.getByAddress(saddr), sport);
+            remote = new InetSocketAddress(InetAddress.getByAddress(daddr), dport);
+        } catch (UnknownHostException ex) {
+            Log.w(TAG, ex.toString());
+            return Process.INVALID_UID;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int uid = cm.getConnectionOwnerUid(protocol, local, remote);
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        synchronized (cache) {
+            calls++;
+            binderNanos += elapsed;
+            binderMaxNanos = Math.max(binderMaxNanos, elapsed);
+
+            // Unknown owners are asked again, the connection might not be known yet
+            if (uid != Process.INVALID_UID) {
+                if (cache.size() >= CACHE_SIZE && cache.indexOfKey(key) < 0)
+                    evict(now);
+                cache.put(key, new Entry(saddr, daddr, dport, uid, now + TTL));
+            }
+        }
+
+        if (uid == Process.INVALID_UID)
+            Log.i(TAG, "Unknown uid local=" + local + " remote=" + remote);
+        return uid;
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private void evict(long now) {
+        for (int i = cache.size() - 1; i >= 0; i--)
+            if (cache.valueAt(i).expires <= now)
+                cache.removeAt(i);
+
+        // All connections are recent, start over
+        if (cache.size() >= CACHE_SIZE)
+            cache.clear();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (cache) {
+            long lookups = hits + misses;
+            return "size=" + cache.size() + " hits=" + hits + " misses=" + misses +
+                    " rate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%" +
+                    " calls=" + calls +
+                    " binder avg=" + (calls == 0 ? 0 : binderNanos / calls / 1000) + "us" +
+                    " max=" + binderMaxNanos / 1000 + "us";
+        }
+    }
+}
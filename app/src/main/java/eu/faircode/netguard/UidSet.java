@@ -0,0 +1,108 @@
+/*
+ * This file is from NetGuard.
+ *
+ * NetGuard is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NetGuard is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2015–2020 by Marcel Bokhorst (M66B), Konrad
+ * Kollnig (University of Oxford)
+ */
+
+package eu.faircode.netguard;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable set of uids, as a sorted array.
+ * <p>
+ * Changes return a new set, to be published through a volatile field, so that lookups from the
+ * tunnel thread need neither locking nor boxing.
+ */
+public final class UidSet {
+    public static final UidSet EMPTY = new UidSet(new int[0]);
+
+    private final int[] uids;
+
+    private UidSet(int[] uids) {
+        this.uids = uids;
+    }
+
+    public static UidSet of(Collection<Integer> uids) {
+        int[] array = new int[uids.size()];
+        int i = 0;
+        for (int uid : uids)
+            array[i++] = uid;
+        Arrays.sort(array);
+
+        // Remove duplicates
+        int n = 0;
+        for (i = 0; i < array.length; i++)
+            if (n == 0 || array[n - 1] != array[i])
+                array[n++] = array[i];
+
+        return new UidSet(n == array.length ? array : Arrays.copyOf(array, n));
+    }
+
+    public boolean contains(int uid) {
+        return (Arrays.binarySearch(uids, uid) >= 0);
+    }
+
+    public int size() {
+        return uids.length;
+    }
+
+    /**
+     * @param uid Uid to add
+     * @return Set with the uid added, or this set if already present
+     */
+    public UidSet with(int uid) {
+        int i = Arrays.binarySearch(uids, uid);
+        if (i >= 0)
+            return this;
+
+        i = -i - 1;
+        int[] array = new int[uids.length + 1];
+        System.arraycopy(uids, 0, array, 0, i);
+        array[i] = uid;
+        System.arraycopy(uids, i, array, i + 1, uids.length - i);
+        return new UidSet(array);
+    }
+
+    /**
+     * @param uid Uid to remove
+     * @return Set with the uid removed, or this set if not present
+     */
+    public UidSet without(int uid) {
+        int i = Arrays.binarySearch(uids, uid);
+        if (i < 0)
+            return this;
+
+        int[] array = new int[uids.length - 1];
+        System.arraycopy(uids, 0, array, 0, i);
+        System.arraycopy(uids, i + 1, array, i, array.length - i);
+        return new UidSet(array);
+    }
+
+    /**
+     * @return Modifiable copy of the uids
+     */
+    public Set<Integer> toSet() {
+        Set<Integer> set = new HashSet<>();
+        for (int uid : uids)
+            set.add(uid);
+        return set;
+    }
+}
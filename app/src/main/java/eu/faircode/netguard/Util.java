@@ -950,7 +950,8 @@ public class Util {
     private static StringBuilder getTrafficLog(Context context) {
         StringBuilder sb = new StringBuilder();
 
-        try (Cursor cursor = DatabaseHelper.getInstance(context).getLog(true, true, true, true, true)) {
+        try (Cursor cursor = DatabaseHelper.getInstance(context).getLog(true, true, true, true, true,
+                Long.MAX_VALUE, Long.MAX_VALUE, 250)) {
 
             int colTime = cursor.getColumnIndex("time");
             int colVersion = cursor.getColumnIndex("version");
@@ -56,7 +56,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -78,7 +77,8 @@ public class DetailsActivity extends AppCompatActivity {
     private DetailsStateAdapter detailsStateAdapter;
 
     /**
-     * Saves the changed tracker settings
+     * Copies the tracker settings to shared preferences, for export. Edits are stored as they
+     * are made, see {@link net.kollnig.missioncontrol.data.BlocklistJournal}.
      *
      * @param c The context
      */
@@ -203,12 +203,6 @@ public class DetailsActivity extends AppCompatActivity {
         return intent;
     }
 
-    @Override
-    public void onPause() {
-        super.onPause();
-        savePrefs(this);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -266,29 +260,35 @@ public class DetailsActivity extends AppCompatActivity {
                 try (Cursor data = trackerList.getAppInfo(appUid)) {
                     if (data == null) throw new IOException("Could not read hosts.");
 
-                    List<String> columnNames = new ArrayList<>();
-                    Collections.addAll(columnNames, data.getColumnNames());
-                    columnNames.add("Tracker Name");
-                    columnNames.add("Tracker Category");
-
-                    csv.writeNext(columnNames.toArray(new String[0]));
-                    while (data.moveToNext()) {
-                        String[] row = new String[data.getColumnNames().length + 2];
-                        for (int i = 0; i < data.getColumnNames().length; i++) {
-                            row[i] = data.getString(i);
+                    try (TrackerList.Classifier classifier = trackerList.getClassifier(data)) {
+                        List<Integer> columns = new ArrayList<>();
+                        List<String> columnNames = new ArrayList<>();
+                        for (int i = 0; i < data.getColumnCount(); i++)
+                            if (!TrackerList.Classifier.isClassification(data.getColumnName(i))) {
+                                columns.add(i);
+                                columnNames.add(data.getColumnName(i));
+                            }
+                        columnNames.add("Tracker Name");
+                        columnNames.add("Tracker Category");
+
+                        csv.writeNext(columnNames.toArray(new String[0]));
+                        while (data.moveToNext()) {
+                            String[] row = new String[columns.size() + 2];
+                            for (int i = 0; i < columns.size(); i++) {
+                                row[i] = data.getString(columns.get(i));
+                            }
+
+                            Tracker tracker = classifier.getTracker();
+                            if (tracker != null) {
+                                row[columns.size()] = tracker.getName();
+                                row[columns.size() + 1] = tracker.getCategory();
+                            } else {
+                                row[columns.size()] = "";
+                                row[columns.size() + 1] = "";
+                            }
+
+                            csv.writeNext(row);
                         }
-
-                        String hostname = data.getString(data.getColumnIndexOrThrow("daddr"));
-                        Tracker tracker = TrackerList.findTracker(hostname);
-                        if (tracker != null) {
-                            row[data.getColumnNames().length] = tracker.getName();
-                            row[data.getColumnNames().length + 1] = tracker.getCategory();
-                        } else {
-                            row[data.getColumnNames().length] = "";
-                            row[data.getColumnNames().length + 1] = "";
-                        }
-
-                        csv.writeNext(row);
                     }
                 }
             }
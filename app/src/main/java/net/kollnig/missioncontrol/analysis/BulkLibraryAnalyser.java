@@ -0,0 +1,146 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2021 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.analysis;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Analyses the tracker libraries of all installed apps in the background, while the device is
+ * charging or not in use, so that results are available before an app is opened.
+ * <p>
+ * Apps are analysed one at a time, each with the bounded parallelism of
+ * {@link TrackerLibraryAnalyser}. Unchanged apps are skipped by the stored results. The run
+ * stops when the device is taken into use or memory runs low, and continues at the next run.
+ */
+public class BulkLibraryAnalyser {
+    private static final String TAG = BulkLibraryAnalyser.class.getSimpleName();
+    private static final long MIN_FREE_MEMORY = 48 * 1024 * 1024L; // bytes
+
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * Start analysing all apps in the background, if the device is charging or not in use
+     *
+     * @param context Context
+     */
+    public static void schedule(Context context) {
+        final Context c = context.getApplicationContext();
+        if (!canRun(c))
+            return;
+        if (!running.compareAndSet(false, true)) {
+            Log.i(TAG, "Already running");
+            return;
+        }
+
+        new Thread(() -> {
+            try {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                analyseAll(c);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            } finally {
+                running.set(false);
+            }
+        }, "LibraryAnalysis").start();
+    }
+
+    private static void analyseAll(Context c) {
+        TrackerLibraryAnalyser analyser = new TrackerLibraryAnalyser(c);
+        List<PackageInfo> packages = c.getPackageManager().getInstalledPackages(0);
+
+        int analysed = 0;
+        int failed = 0;
+        long start = System.currentTimeMillis();
+        for (PackageInfo pkg : packages) {
+            if (pkg.applicationInfo == null)
+                continue;
+
+            // System apps are only analysed when opened
+            int flags = pkg.applicationInfo.flags;
+            if ((flags & ApplicationInfo.FLAG_SYSTEM) != 0 &&
+                    (flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0)
+                continue;
+
+            if (!canRun(c)) {
+                Log.i(TAG, "Device in use, stopping");
+                break;
+            }
+            if (!hasMemory(c)) {
+                Log.i(TAG, "Memory low, stopping");
+                break;
+            }
+
+            try {
+                analyser.getTrackers(pkg);
+                analysed++;
+            } catch (OutOfMemoryError ex) {
+                Log.w(TAG, "Out of memory analysing " + pkg.packageName);
+                break;
+            } catch (Throwable ex) {
+                Log.w(TAG, "Analysis of " + pkg.packageName + " failed: " + ex);
+                failed++;
+            }
+        }
+
+        Log.i(TAG, "Analysed " + analysed + " failed " + failed + " of " + packages.size() +
+                " packages in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @param c Context
+     * @return Whether the device is charging or not in use
+     */
+    private static boolean canRun(Context c) {
+        Intent battery = c.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0)
+            return true;
+
+        PowerManager pm = (PowerManager) c.getSystemService(Context.POWER_SERVICE);
+        return (pm != null && !pm.isInteractive());
+    }
+
+    /**
+     * @param c Context
+     * @return Whether there is enough memory to analyse another app
+     */
+    private static boolean hasMemory(Context c) {
+        ActivityManager am = (ActivityManager) c.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) {
+            ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+            am.getMemoryInfo(info);
+            if (info.lowMemory)
+                return false;
+        }
+
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return (free > MIN_FREE_MEMORY);
+    }
+}
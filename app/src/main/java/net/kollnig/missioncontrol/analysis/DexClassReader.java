@@ -0,0 +1,210 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2021 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the descriptors of the classes defined in a dex file, in a single forward pass.
+ * <p>
+ * Only the string, type and class definition tables are read, and then the string data of
+ * the class descriptors, in the order of their offsets. Code and all other sections are
+ * skipped, so that the dex file never needs to be held in memory.
+ */
+class DexClassReader {
+    private static final int HEADER_SIZE = 0x70;
+    private static final int CLASS_DEF_SIZE = 32;
+
+    /**
+     * Receives class descriptors, such as Lcom/example/Foo;
+     */
+    interface Visitor {
+        void visit(char[] descriptor, int length);
+    }
+
+    /**
+     * Thrown if the input is not a dex file this reader understands
+     */
+    static class DexFormatException extends IOException {
+        DexFormatException(String message) {
+            super(message);
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private long position = 0;
+
+    private DexClassReader(InputStream in) {
+        this.in = new BufferedInputStream(in, 65536);
+    }
+
+    /**
+     * Read the class descriptors of a dex file
+     *
+     * @param in      Dex file, not closed
+     * @param visitor Receiver of the descriptors, called from the calling thread
+     * @throws IOException If the dex file cannot be read or is malformed
+     */
+    static void read(InputStream in, Visitor visitor) throws IOException {
+        new DexClassReader(in).read(visitor);
+    }
+
+    private void read(Visitor visitor) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        readFully(header, HEADER_SIZE);
+        if (header[0] != 'd' || header[1] != 'e' || header[2] != 'x' || header[3] != '\n')
+            throw new DexFormatException("Not a dex file");
+
+        int stringIdsSize = getInt(header, 0x38);
+        long stringIdsOff = getUnsigned(header, 0x3c);
+        int typeIdsSize = getInt(header, 0x40);
+        long typeIdsOff = getUnsigned(header, 0x44);
+        int classDefsSize = getInt(header, 0x60);
+        long classDefsOff = getUnsigned(header, 0x64);
+        if (stringIdsSize < 0 || typeIdsSize < 0 || classDefsSize < 0)
+            throw new DexFormatException("Invalid table size");
+        if (classDefsSize == 0)
+            return;
+
+        // Tables are in this order in any dex file written by the build tools
+        if (stringIdsOff > typeIdsOff || typeIdsOff > classDefsOff)
+            throw new DexFormatException("Unexpected section order");
+
+        int[] stringOffs = readInts(stringIdsOff, stringIdsSize, 4);
+        int[] typeStrings = readInts(typeIdsOff, typeIdsSize, 4);
+        int[] classTypes = readInts(classDefsOff, classDefsSize, CLASS_DEF_SIZE);
+
+        // Offsets of the descriptor strings, so that they can be read moving forward only
+        long[] offsets = new long[classTypes.length];
+        for (int i = 0; i < classTypes.length; i++) {
+            int type = classTypes[i];
+            if (type < 0 || type >= typeStrings.length)
+                throw new DexFormatException("Invalid type index");
+            int string = typeStrings[type];
+            if (string < 0 || string >= stringOffs.length)
+                throw new DexFormatException("Invalid string index");
+            offsets[i] = stringOffs[string] & 0xffffffffL;
+        }
+        Arrays.sort(offsets);
+
+        char[] chars = new char[256];
+        long last = -1;
+        for (long offset : offsets) {
+            if (offset == last)
+                continue;
+            last = offset;
+
+            skipTo(offset);
+            int length = readUleb128();
+            if (length < 0)
+                throw new DexFormatException("Invalid string length");
+            if (length > chars.length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            readMutf8(chars, length);
+            visitor.visit(chars, length);
+        }
+    }
+
+    private int[] readInts(long offset, int count, int stride) throws IOException {
+        skipTo(offset);
+        int[] values = new int[count];
+        int perBuffer = buffer.length / stride;
+        for (int i = 0; i < count; i += perBuffer) {
+            int n = Math.min(perBuffer, count - i);
+            readFully(buffer, n * stride);
+            for (int j = 0; j < n; j++)
+                values[i + j] = getInt(buffer, j * stride);
+        }
+        return values;
+    }
+
+    private void readMutf8(char[] chars, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            int a = readByte();
+            if (a < 0x80)
+                chars[i] = (char) a;
+            else if ((a & 0xe0) == 0xc0)
+                chars[i] = (char) (((a & 0x1f) << 6) | (readByte() & 0x3f));
+            else if ((a & 0xf0) == 0xe0) {
+                int b = readByte();
+                chars[i] = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (readByte() & 0x3f));
+            } else
+                throw new DexFormatException("Invalid string data");
+        }
+    }
+
+    private int readUleb128() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new DexFormatException("Invalid uleb128");
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        position++;
+        return b;
+    }
+
+    private void readFully(byte[] b, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(b, read, length - read);
+            if (n < 0)
+                throw new EOFException();
+            read += n;
+        }
+        position += length;
+    }
+
+    private void skipTo(long offset) throws IOException {
+        if (offset < position)
+            throw new DexFormatException("Unexpected offset " + offset);
+        while (position < offset) {
+            long n = in.skip(offset - position);
+            if (n <= 0) {
+                // Some streams only skip after a read
+                readByte();
+                continue;
+            }
+            position += n;
+        }
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff)
+                | (b[off + 1] & 0xff) << 8
+                | (b[off + 2] & 0xff) << 16
+                | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static long getUnsigned(byte[] b, int off) {
+        return getInt(b, off) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2021 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Aho–Corasick automaton over a fixed set of signatures, to find all signatures contained in a
+ * class name in a single pass.
+ * <p>
+ * The automaton is compiled into a dense transition table over the characters used by the
+ * signatures, so matching costs one table lookup per character. Immutable after construction,
+ * and thus safe to share between threads.
+ */
+class SignatureMatcher {
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final int[] asciiClasses = new int[128];
+    private final char[] alphabet;
+    private final int width;
+    private final int[] delta;
+    private final int[] output;
+
+    /**
+     * @param signatures Signatures, null entries are ignored
+     */
+    SignatureMatcher(String[] signatures) {
+        // Map characters of the signatures to classes 1..n, 0 is any other character
+        StringBuilder chars = new StringBuilder();
+        int length = 0;
+        for (String signature : signatures)
+            if (signature != null) {
+                chars.append(signature);
+                length += signature.length();
+            }
+        char[] all = chars.toString().toCharArray();
+        Arrays.sort(all);
+        int n = 0;
+        for (int i = 0; i < all.length; i++)
+            if (n == 0 || all[n - 1] != all[i])
+                all[n++] = all[i];
+        alphabet = Arrays.copyOf(all, n);
+        for (int i = 0; i < alphabet.length && alphabet[i] < 128; i++)
+            asciiClasses[alphabet[i]] = i + 1;
+        width = alphabet.length + 1;
+
+        // Build trie, node 0 is the root and never a child
+        int[] delta = new int[(length + 1) * width];
+        int[] output = new int[length + 1];
+        Arrays.fill(output, NONE);
+        int nodes = 1;
+        for (int s = 0; s < signatures.length; s++) {
+            String signature = signatures[s];
+            if (signature == null || signature.isEmpty())
+                continue;
+
+            int node = 0;
+            for (int i = 0; i < signature.length(); i++) {
+                int edge = node * width + classOf(signature.charAt(i));
+                if (delta[edge] == 0)
+                    delta[edge] = nodes++;
+                node = delta[edge];
+            }
+            output[node] = Math.min(output[node], s);
+        }
+
+        // Resolve failure links breadth first, turning the trie into a complete automaton
+        int[] fail = new int[nodes];
+        int[] queue = new int[nodes];
+        int head = 0, tail = 0;
+        for (int a = 0; a < width; a++)
+            if (delta[a] != 0)
+                queue[tail++] = delta[a];
+        while (head < tail) {
+            int node = queue[head++];
+            output[node] = Math.min(output[node], output[fail[node]]);
+            for (int a = 0; a < width; a++) {
+                int edge = node * width + a;
+                int next = delta[fail[node] * width + a];
+                if (delta[edge] == 0)
+                    delta[edge] = next;
+                else {
+                    fail[delta[edge]] = next;
+                    queue[tail++] = delta[edge];
+                }
+            }
+        }
+
+        this.delta = Arrays.copyOf(delta, nodes * width);
+        this.output = Arrays.copyOf(output, nodes);
+    }
+
+    /**
+     * Find the signature with the lowest index contained in text
+     *
+     * @param text Characters to search
+     * @param from Start offset, inclusive
+     * @param to   End offset, exclusive
+     * @return Index of signature, or -1 if none matched
+     */
+    int match(char[] text, int from, int to) {
+        int state = 0;
+        int best = NONE;
+        for (int i = from; i < to; i++) {
+            state = delta[state * width + classOf(text[i])];
+            if (output[state] < best)
+                best = output[state];
+        }
+        return (best == NONE ? -1 : best);
+    }
+
+    private int classOf(char c) {
+        if (c < 128)
+            return asciiClasses[c];
+        int i = Arrays.binarySearch(alphabet, c);
+        return (i < 0 ? 0 : i + 1);
+    }
+}
@@ -18,9 +18,9 @@
 package net.kollnig.missioncontrol.analysis;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
@@ -28,83 +28,281 @@ import androidx.annotation.NonNull;
 import net.kollnig.missioncontrol.R;
 import net.kollnig.missioncontrol.data.TrackerLibrary;
 
-import org.jf.dexlib2.iface.ClassDef;
-import org.jf.dexlib2.iface.DexFile;
-
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
+import eu.faircode.netguard.DatabaseHelper;
 import eu.faircode.netguard.Rule;
-import lanchon.multidexlib2.BasicDexFileNamer;
-import lanchon.multidexlib2.DuplicateEntryNameException;
-import lanchon.multidexlib2.DuplicateTypeException;
-import lanchon.multidexlib2.EmptyMultiDexContainerException;
-import lanchon.multidexlib2.MultiDexDetectedException;
-import lanchon.multidexlib2.MultiDexIO;
 
 public class TrackerLibraryAnalyser {
     private static final int EXODUS_DATABASE_VERSION = 423; // eof422, see https://bitbucket.org/oF2pks/fdroid-classyshark3xodus/commits/
+    private static final int MAX_THREADS = 4;
+    private static Signatures signatures = null;
     private final Context mContext;
 
     public TrackerLibraryAnalyser(Context mContext) {
         this.mContext = mContext;
-
-        int current = getPrefs().getInt("version", Integer.MIN_VALUE);
-        if (current < EXODUS_DATABASE_VERSION)
-            getPrefs().edit().clear().putInt("version", EXODUS_DATABASE_VERSION).apply();
     }
 
     /**
      * Does the tracker library analysis.
      * <p>
      * Matches class names of the app to be analysed against the Exodus tracker database, which
-     * contains information on known class of tracker libraries.
+     * contains information on known class of tracker libraries. The dex files of the apk are
+     * scanned in parallel, reading only the class descriptors of each.
      *
      * @param c   Context
      * @param apk Path to apk to analyse
-     * @return Found trackers
+     * @return Ids of found trackers
      * @throws IOException      I/O errors
      * @throws RuntimeException Non I/O errors
      */
     @NonNull
-    private static Set<TrackerLibrary> findTrackers(Context c, String apk) throws IOException, RuntimeException {
-        DexFile dx = MultiDexIO.readDexFile(true, new File(apk), new BasicDexFileNamer(), null, null);
+    private static BitSet findTrackers(Context c, String apk) throws IOException, RuntimeException {
+        final Signatures db = getSignatures(c);
+        BitSet found = new BitSet();
 
-        String[] Sign = c.getResources().getStringArray(R.array.trackers);
-        String[] Names = c.getResources().getStringArray(R.array.tname);
-        String[] Web = c.getResources().getStringArray(R.array.tweb);
-        Set<TrackerLibrary> trackers = new HashSet<>();
+        try (final ZipFile zip = new ZipFile(apk)) {
+            List<ZipEntry> dexes = getDexEntries(zip);
+            if (dexes.isEmpty())
+                throw new DexClassReader.DexFormatException("No dex files in " + apk);
+
+            int threads = Math.min(dexes.size(),
+                    Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<BitSet>> futures = new ArrayList<>();
+                for (final ZipEntry entry : dexes)
+                    futures.add(executor.submit(() -> scan(zip, entry, db.matcher)));
+
+                for (Future<BitSet> future : futures)
+                    found.or(getResult(future));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * @param zip Apk
+     * @return Dex files of the apk, named as by the build tools, largest first
+     */
+    private static List<ZipEntry> getDexEntries(ZipFile zip) {
+        List<ZipEntry> dexes = new ArrayList<>();
+        for (int i = 1; ; i++) {
+            ZipEntry entry = zip.getEntry(i == 1 ? "classes.dex" : "classes" + i + ".dex");
+            if (entry == null)
+                break;
+            dexes.add(entry);
+        }
+
+        // Start large dex files first, for an even load of the threads
+        Collections.sort(dexes, (a, b) -> Long.compare(b.getSize(), a.getSize()));
+        return dexes;
+    }
+
+    /**
+     * Match the classes of a dex file against the signatures
+     *
+     * @return Indices of matched signatures
+     */
+    private static BitSet scan(ZipFile zip, ZipEntry entry, SignatureMatcher matcher) throws IOException {
+        final BitSet found = new BitSet();
+        try (InputStream in = zip.getInputStream(entry)) {
+            DexClassReader.read(in, (descriptor, length) -> {
+                // Lcom/example/Foo; to com.example.Foo
+                if (length - 2 <= 8 || descriptor[0] != 'L' || descriptor[length - 1] != ';')
+                    return;
 
-        for (ClassDef classDef : dx.getClasses()) {
-            String className = classDef.getType();
-            className = className.replace('/', '.');
-            className = className.substring(1, className.length() - 1);
-
-            if (className.length() > 8) {
-                if (className.contains(".")) {
-                    for (int Signz = 0; Signz < Sign.length; Signz++) {
-                        if (className.contains(Sign[Signz])) {
-                            if (Names[Signz].startsWith("µ?")) // exclude "good" trackers
-                                continue;
-
-                            trackers.add(new TrackerLibrary(Names[Signz], Web[Signz], Signz, Sign[Signz]));
-                            break;
-                        }
+                boolean dotted = false;
+                for (int i = 1; i < length - 1; i++)
+                    if (descriptor[i] == '/' || descriptor[i] == '.') {
+                        descriptor[i] = '.';
+                        dotted = true;
                     }
+
+                if (dotted) {
+                    int index = matcher.match(descriptor, 1, length - 1);
+                    if (index >= 0)
+                        found.set(index);
+                }
+            });
+        }
+        return found;
+    }
+
+    private static BitSet getResult(Future<BitSet> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.toString());
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else
+                throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Load the Exodus signatures once, and compile them for matching. "Good" trackers are left
+     * out of the matcher, so that a class matches the first other signature instead.
+     *
+     * @param c Context
+     * @return Signatures
+     */
+    private static synchronized Signatures getSignatures(Context c) {
+        if (signatures == null) {
+            String[] sign = c.getResources().getStringArray(R.array.trackers);
+            String[] names = c.getResources().getStringArray(R.array.tname);
+            String[] web = c.getResources().getStringArray(R.array.tweb);
+
+            String[] patterns = new String[sign.length];
+            for (int i = 0; i < sign.length; i++)
+                if (!names[i].startsWith("µ?")) // exclude "good" trackers
+                    patterns[i] = sign[i];
+
+            signatures = new Signatures(sign, names, web, new SignatureMatcher(patterns));
+        }
+        return signatures;
+    }
+
+    private static final class Signatures {
+        final String[] sign;
+        final String[] names;
+        final String[] web;
+        final SignatureMatcher matcher;
+
+        Signatures(String[] sign, String[] names, String[] web, SignatureMatcher matcher) {
+            this.sign = sign;
+            this.names = names;
+            this.web = web;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * Get the tracker libraries of an app. The stored analysis is used if the apk did not
+     * change, as by its version, update time and size, or else its hash.
+     *
+     * @param pkg Package of the app to analyse
+     * @return Found trackers
+     * @throws IOException      I/O errors
+     * @throws RuntimeException Non I/O errors
+     */
+    @NonNull
+    Set<TrackerLibrary> getTrackers(PackageInfo pkg) throws IOException, RuntimeException {
+        File apk = new File(pkg.applicationInfo.publicSourceDir);
+        long size = apk.length();
+        DatabaseHelper dh = DatabaseHelper.getInstance(mContext);
+
+        String hash = null;
+        try (Cursor cursor = dh.getLibrary(pkg.packageName)) {
+            if (cursor.moveToFirst() &&
+                    cursor.getInt(cursor.getColumnIndex("signatures")) == EXODUS_DATABASE_VERSION) {
+                BitSet found = parseIds(cursor.getString(cursor.getColumnIndex("trackers")));
+
+                if (cursor.getLong(cursor.getColumnIndex("version")) == pkg.versionCode &&
+                        cursor.getLong(cursor.getColumnIndex("updated")) == pkg.lastUpdateTime &&
+                        cursor.getLong(cursor.getColumnIndex("size")) == size)
+                    return getLibraries(found);
+
+                // Same apk installed again
+                hash = getHash(apk);
+                if (hash.equals(cursor.getString(cursor.getColumnIndex("hash")))) {
+                    dh.setLibrary(pkg.packageName, pkg.versionCode, pkg.lastUpdateTime, size, hash,
+                            EXODUS_DATABASE_VERSION, toIds(found));
+                    return getLibraries(found);
                 }
             }
         }
 
+        if (hash == null)
+            hash = getHash(apk);
+        BitSet found = findTrackers(mContext, apk.getPath());
+        dh.setLibrary(pkg.packageName, pkg.versionCode, pkg.lastUpdateTime, size, hash,
+                EXODUS_DATABASE_VERSION, toIds(found));
+        return getLibraries(found);
+    }
+
+    /**
+     * @return Version of the signature database, to match stored analyses
+     */
+    public static int getDatabaseVersion() {
+        return EXODUS_DATABASE_VERSION;
+    }
+
+    private Set<TrackerLibrary> getLibraries(BitSet found) {
+        Signatures db = getSignatures(mContext);
+        Set<TrackerLibrary> trackers = new HashSet<>();
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1))
+            if (i < db.sign.length)
+                trackers.add(new TrackerLibrary(db.names[i], db.web[i], i, db.sign[i]));
         return trackers;
     }
 
+    private static int[] toIds(BitSet found) {
+        int[] ids = new int[found.cardinality()];
+        int n = 0;
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1))
+            ids[n++] = i;
+        return ids;
+    }
+
+    private static BitSet parseIds(String ids) {
+        BitSet found = new BitSet();
+        if (!TextUtils.isEmpty(ids))
+            for (String id : ids.split(","))
+                found.set(Integer.parseInt(id));
+        return found;
+    }
+
+    private static String getHash(File apk) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[65536];
+            try (InputStream in = new FileInputStream(apk)) {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    digest.update(buffer, 0, n);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest())
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     /**
-     * Encapsulates the tracker library analysis, and caches results to avoid duplicate analyses
+     * Encapsulates the tracker library analysis, and stores results to avoid duplicate analyses
      *
      * @param mAppId The package name of the app to analyse
      * @return A string with the analysis results
@@ -114,38 +312,20 @@ public class TrackerLibraryAnalyser {
         String trackerString;
 
         try {
-            Set<TrackerLibrary> trackers;
             PackageInfo pkg = mContext.getPackageManager().getPackageInfo(mAppId, 0);
+            Set<TrackerLibrary> trackers = getTrackers(pkg);
 
-            // Try to load cached result
-            SharedPreferences prefs = getPrefs();
-            int analysedCode = prefs.getInt("versioncode_" + mAppId, Integer.MIN_VALUE);
-
-            if (pkg.versionCode > analysedCode) {
-                String apk = pkg.applicationInfo.publicSourceDir;
-                trackers = findTrackers(mContext, apk);
-
-                final List<TrackerLibrary> sortedTrackers = new ArrayList<>(trackers);
-                Collections.sort(sortedTrackers);
+            final List<TrackerLibrary> sortedTrackers = new ArrayList<>(trackers);
+            Collections.sort(sortedTrackers);
 
-                if (sortedTrackers.size() > 0)
-                    trackerString = "\n• " + TextUtils.join("\n• ", sortedTrackers);
-                else
-                    trackerString = mContext.getString(R.string.none);
-
-                // Cache results
-                prefs.edit()
-                        .putInt("versioncode_" + mAppId, pkg.versionCode)
-                        .putString("trackers_" + mAppId, trackerString)
-                        .apply();
-            } else
-                trackerString = prefs.getString("trackers_" + mAppId, null);
+            if (sortedTrackers.size() > 0)
+                trackerString = "\n• " + TextUtils.join("\n• ", sortedTrackers);
+            else
+                trackerString = mContext.getString(R.string.none);
 
         } catch (Throwable e) {
-            if (e instanceof EmptyMultiDexContainerException
-                    || e instanceof MultiDexDetectedException
-                    || e instanceof DuplicateTypeException
-                    || e instanceof DuplicateEntryNameException
+            if (e instanceof DexClassReader.DexFormatException
+                    || e instanceof ZipException
                     || e instanceof PackageManager.NameNotFoundException
                     || Rule.isSystem(mAppId, mContext))
                 throw new AnalysisException(mContext.getString(R.string.tracking_detection_failed));
@@ -157,8 +337,4 @@ public class TrackerLibraryAnalyser {
 
         return trackerString;
     }
-
-    private SharedPreferences getPrefs() {
-        return mContext.getSharedPreferences("library_analysis", Context.MODE_PRIVATE);
-    }
 }
@@ -0,0 +1,218 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+package net.kollnig.missioncontrol.data;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+
+/**
+ * Append-only journal of blocklist edits, so that a single edit is persisted without rewriting
+ * all settings.
+ * <p>
+ * The file starts with a magic number and a format version, followed by records of an
+ * operation, a uid and a key. The journal is read at once and replayed on load, and compacted
+ * by writing the current state as a new journal, once it holds many superseded records.
+ */
+public class BlocklistJournal {
+    private static final String TAG = BlocklistJournal.class.getSimpleName();
+    private static final int MAGIC = 0x5443424a; // TCBJ
+    private static final int VERSION = 1;
+    private static final int MIN_COMPACT = 1024; // records
+
+    public static final byte OP_ADD = 1;
+    public static final byte OP_REMOVE = 2;
+    public static final byte OP_CLEAR_UID = 3;
+    public static final byte OP_CLEAR = 4;
+
+    private final File file;
+    private int records = 0;
+
+    /**
+     * Receives records of the journal
+     */
+    public interface Replay {
+        void apply(byte op, int uid, String key);
+    }
+
+    /**
+     * Provides the current state, as records
+     */
+    public interface Snapshot {
+        void write(Writer writer) throws IOException;
+    }
+
+    /**
+     * Writes records of a new journal
+     */
+    public static final class Writer {
+        private final DataOutputStream out;
+        private int records = 0;
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void add(int uid, String key) throws IOException {
+            write(out, OP_ADD, uid, key);
+            records++;
+        }
+    }
+
+    public BlocklistJournal(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Read all records. An incomplete last record or header, as left by a crash during an append,
+     * is ignored and cut off, so that later records are appended after the last complete record.
+     *
+     * @param replay Receiver of the records
+     * @throws IOException If the journal cannot be read or has an unknown format
+     */
+    public synchronized void replay(Replay replay) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+        }
+
+        records = 0;
+
+        // A crash during the first append can leave part of the header only
+        if (data.length < 8) {
+            Log.w(TAG, "Incomplete header in " + file.getName());
+            truncate(0);
+            return;
+        }
+
+        ByteArrayInputStream bin = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bin);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Unknown blocklist journal format");
+
+        int complete = data.length - bin.available();
+        try {
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                int uid = in.readInt();
+                String key = in.readUTF();
+                replay.apply(op, uid, key.isEmpty() ? null : key);
+                records++;
+                complete = data.length - bin.available();
+            }
+        } catch (EOFException | UTFDataFormatException ex) {
+            Log.w(TAG, "Incomplete record in " + file.getName() + " at " + complete);
+            truncate(complete);
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * Append a record
+     *
+     * @param op  Operation
+     * @param uid Uid of app
+     * @param key Key, or null
+     */
+    public synchronized void append(byte op, int uid, String key) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (file.length() == 0)
+                writeHeader(out);
+            write(out, op, uid, key);
+            records++;
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+        }
+    }
+
+    /**
+     * Check whether the journal holds many more records than needed for the current state
+     *
+     * @param entries Number of entries of the current state
+     * @return Whether to compact
+     */
+    public synchronized boolean needsCompaction(int entries) {
+        return (records > MIN_COMPACT && records > 2 * entries);
+    }
+
+    /**
+     * Replace the journal with the current state, atomically. The new journal is synced before
+     * it replaces the old one, so that a crash leaves either of both complete.
+     *
+     * @param snapshot Current state
+     */
+    public synchronized void compact(Snapshot snapshot) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer;
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                writeHeader(out);
+                writer = new Writer(out);
+                snapshot.write(writer);
+                out.flush();
+                fos.getFD().sync();
+            }
+
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not replace " + file.getName());
+            records = writer.records;
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            tmp.delete();
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void write(DataOutputStream out, byte op, int uid, String key) throws IOException {
+        out.writeByte(op);
+        out.writeInt(uid);
+        out.writeUTF(key == null ? "" : key);
+    }
+}
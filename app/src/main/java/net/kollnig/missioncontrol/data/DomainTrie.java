@@ -0,0 +1,325 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, path-compressed trie over reversed hostnames.
+ * <p>
+ * Tracker domains match any hostname they are a label-aligned suffix of (longest suffix wins),
+ * whereas hosts (e.g. tracking IPs) only match exactly. Lookups walk the hostname once from its last
+ * character to its first, without allocating.
+ */
+public final class DomainTrie {
+    public static final int NONE = -1;
+    public static final int HOSTS_ONLY = -2;
+
+    public static final DomainTrie EMPTY = new Builder().build();
+
+    private static final int FLAG_HOST = 1;
+
+    private final Tracker[] trackers;
+
+    // Per node: value (tracker index + 1, shifted left, OR'ed with FLAG_HOST) and its edges
+    private final int[] nodeValue;
+    private final int[] nodeFirstEdge;
+    private final int[] nodeEdgeCount;
+
+    // Per edge: label as slice of the reversed character pool, and target node
+    private final char[] pool;
+    private final int[] edgeStart;
+    private final int[] edgeEnd;
+    private final int[] edgeTarget;
+
+    private DomainTrie(Tracker[] trackers, int[] nodeValue, int[] nodeFirstEdge, int[] nodeEdgeCount,
+                       char[] pool, int[] edgeStart, int[] edgeEnd, int[] edgeTarget) {
+        this.trackers = trackers;
+        this.nodeValue = nodeValue;
+        this.nodeFirstEdge = nodeFirstEdge;
+        this.nodeEdgeCount = nodeEdgeCount;
+        this.pool = pool;
+        this.edgeStart = edgeStart;
+        this.edgeEnd = edgeEnd;
+        this.edgeTarget = edgeTarget;
+    }
+
+    /**
+     * Finds the longest tracker domain that is a suffix of the hostname, falling back to an
+     * exact match against the hosts.
+     *
+     * @param hostname Hostname of interest
+     * @return Index of the tracker (see {@link #getTracker(int)}), {@link #HOSTS_ONLY} or {@link #NONE}
+     */
+    public int lookup(@NonNull CharSequence hostname) {
+        int len = hostname.length();
+        int pos = len; // characters at [pos, len) have been consumed
+        int node = 0;
+        int found = NONE;
+
+        while (true) {
+            int value = nodeValue[node];
+            if (value > FLAG_HOST
+                    && (pos == 0 || hostname.charAt(pos - 1) == '.'))
+                found = (value >>> 1) - 1;
+
+            if (pos == 0) {
+                if (found == NONE && (value & FLAG_HOST) != 0)
+                    return HOSTS_ONLY;
+                return found;
+            }
+
+            int edge = findEdge(node, hostname.charAt(pos - 1));
+            if (edge < 0)
+                return found;
+
+            // Match remaining label characters, backwards through the hostname
+            int end = edgeEnd[edge];
+            for (int i = edgeStart[edge]; i < end; i++) {
+                if (pos == 0 || hostname.charAt(pos - 1) != pool[i])
+                    return found;
+                pos--;
+            }
+
+            node = edgeTarget[edge];
+        }
+    }
+
+    /**
+     * Get tracker by index
+     *
+     * @param index Index, as returned by {@link #lookup(CharSequence)}
+     * @return Tracker
+     */
+    public Tracker getTracker(int index) {
+        return trackers[index];
+    }
+
+    /**
+     * Get number of trie nodes
+     *
+     * @return Number of nodes
+     */
+    public int size() {
+        return nodeValue.length;
+    }
+
+    private int findEdge(int node, char c) {
+        int lo = nodeFirstEdge[node];
+        int hi = lo + nodeEdgeCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char m = pool[edgeStart[mid]];
+            if (m < c)
+                lo = mid + 1;
+            else if (m > c)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Collects tracker domains and hosts, and compiles them into a {@link DomainTrie}
+     */
+    public static final class Builder {
+        private final Map<String, Tracker> trackerDomains = new HashMap<>();
+        private final List<String> hosts = new ArrayList<>();
+
+        /**
+         * Add tracker domain, overwriting earlier trackers of the same domain
+         *
+         * @param domain  Domain, matched as suffix
+         * @param tracker Tracker of this domain
+         * @return This builder
+         */
+        public Builder addTracker(String domain, Tracker tracker) {
+            trackerDomains.put(domain, tracker);
+            return this;
+        }
+
+        /**
+         * Add tracker domains, overwriting earlier trackers of the same domains
+         *
+         * @param domains Map of domains to trackers
+         * @return This builder
+         */
+        public Builder addTrackers(Map<String, Tracker> domains) {
+            trackerDomains.putAll(domains);
+            return this;
+        }
+
+        /**
+         * Add hosts, matched exactly
+         *
+         * @param hosts Hostnames or IP addresses
+         * @return This builder
+         */
+        public Builder addHosts(Collection<String> hosts) {
+            this.hosts.addAll(hosts);
+            return this;
+        }
+
+        public DomainTrie build() {
+            // Assign values to reversed keys
+            Map<Tracker, Integer> trackerIndex = new IdentityHashMap<>();
+            List<Tracker> trackers = new ArrayList<>();
+            Map<String, Integer> values = new HashMap<>(trackerDomains.size() + hosts.size());
+            for (Map.Entry<String, Tracker> entry : trackerDomains.entrySet()) {
+                Integer index = trackerIndex.get(entry.getValue());
+                if (index == null) {
+                    index = trackers.size();
+                    trackerIndex.put(entry.getValue(), index);
+                    trackers.add(entry.getValue());
+                }
+                values.put(reverse(entry.getKey()), (index + 1) << 1);
+            }
+            for (String host : hosts) {
+                String key = reverse(host);
+                Integer value = values.get(key);
+                values.put(key, (value == null ? 0 : value) | FLAG_HOST);
+            }
+
+            String[] keys = values.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            int[] keyValues = new int[keys.length];
+            int chars = 0;
+            for (int i = 0; i < keys.length; i++) {
+                keyValues[i] = values.get(keys[i]);
+                chars += keys[i].length();
+            }
+            values.clear();
+
+            Compiler compiler = new Compiler(keys, keyValues, chars);
+            compiler.compile(compiler.newNode(), 0, keys.length, 0);
+            return compiler.finish(trackers.toArray(new Tracker[0]));
+        }
+
+        private static String reverse(String s) {
+            return new StringBuilder(s).reverse().toString();
+        }
+    }
+
+    /**
+     * Lays out sorted keys as flat arrays, depth first
+     */
+    private static final class Compiler {
+        private final String[] keys;
+        private final int[] keyValues;
+
+        private final int[] nodeValue;
+        private final int[] nodeFirstEdge;
+        private final int[] nodeEdgeCount;
+        private final char[] pool;
+        private final int[] edgeStart;
+        private final int[] edgeEnd;
+        private final int[] edgeTarget;
+        private int nodes = 0;
+        private int edges = 0;
+        private int poolSize = 0;
+
+        Compiler(String[] keys, int[] keyValues, int chars) {
+            this.keys = keys;
+            this.keyValues = keyValues;
+
+            // A path-compressed trie has at most one branching node per key, plus the root
+            int maxNodes = 2 * keys.length + 1;
+            nodeValue = new int[maxNodes];
+            nodeFirstEdge = new int[maxNodes];
+            nodeEdgeCount = new int[maxNodes];
+            pool = new char[chars];
+            edgeStart = new int[maxNodes];
+            edgeEnd = new int[maxNodes];
+            edgeTarget = new int[maxNodes];
+        }
+
+        int newNode() {
+            return nodes++;
+        }
+
+        /**
+         * Compile node for keys [lo, hi), which share their first depth characters
+         */
+        void compile(int node, int lo, int hi, int depth) {
+            if (lo < hi && keys[lo].length() == depth)
+                nodeValue[node] = keyValues[lo++];
+
+            // Reserve contiguous edges, one per distinct next character
+            int first = edges;
+            int count = 0;
+            for (int i = lo; i < hi; count++)
+                i = groupEnd(i, hi, depth);
+            nodeFirstEdge[node] = first;
+            nodeEdgeCount[node] = count;
+            edges += count;
+
+            int edge = first;
+            for (int i = lo; i < hi; edge++) {
+                int end = groupEnd(i, hi, depth);
+                int common = commonPrefix(keys[i], keys[end - 1], depth);
+
+                edgeStart[edge] = poolSize;
+                for (int j = depth; j < common; j++)
+                    pool[poolSize++] = keys[i].charAt(j);
+                edgeEnd[edge] = poolSize;
+
+                int child = newNode();
+                edgeTarget[edge] = child;
+                compile(child, i, end, common);
+
+                i = end;
+            }
+        }
+
+        private int groupEnd(int i, int hi, int depth) {
+            char c = keys[i].charAt(depth);
+            int end = i + 1;
+            while (end < hi && keys[end].charAt(depth) == c)
+                end++;
+            return end;
+        }
+
+        private static int commonPrefix(String a, String b, int from) {
+            int max = Math.min(a.length(), b.length());
+            int i = from;
+            while (i < max && a.charAt(i) == b.charAt(i))
+                i++;
+            return i;
+        }
+
+        DomainTrie finish(Tracker[] trackers) {
+            return new DomainTrie(trackers,
+                    Arrays.copyOf(nodeValue, nodes),
+                    Arrays.copyOf(nodeFirstEdge, nodes),
+                    Arrays.copyOf(nodeEdgeCount, nodes),
+                    Arrays.copyOf(pool, poolSize),
+                    Arrays.copyOf(edgeStart, edges),
+                    Arrays.copyOf(edgeEnd, edges),
+                    Arrays.copyOf(edgeTarget, edges));
+        }
+    }
+}
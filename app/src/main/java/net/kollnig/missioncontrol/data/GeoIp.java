@@ -0,0 +1,166 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+package net.kollnig.missioncontrol.data;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+import eu.faircode.netguard.DatabaseHelper;
+import eu.faircode.netguard.Util;
+
+/**
+ * Resolves addresses to countries with the bundled GeoLite2 database.
+ * <p>
+ * The database is copied from the assets to internal storage once per app update, and opened
+ * memory-mapped, so that it is shared by all callers and not held on the heap. Host names are
+ * resolved with the local DNS records only, never with the network.
+ */
+public class GeoIp {
+    private static final String TAG = GeoIp.class.getSimpleName();
+    private static final String ASSET = "GeoLite2-Country.mmdb";
+    private static final int CACHE_SIZE = 2048; // addresses
+    private static final String NONE = ""; // address without country
+
+    private static GeoIp instance;
+
+    private final Context context;
+    private final LruCache<String, String> countries = new LruCache<>(CACHE_SIZE);
+    private DatabaseReader reader = null;
+
+    private GeoIp(Context c) {
+        context = c.getApplicationContext();
+    }
+
+    public static synchronized GeoIp getInstance(Context c) {
+        if (instance == null)
+            instance = new GeoIp(c);
+        return instance;
+    }
+
+    /**
+     * Get the country of a host, using the local DNS records for host names
+     *
+     * @param host Host name or numeric address
+     * @return ISO code of the country, or null if unknown
+     * @throws IOException If the database cannot be opened
+     */
+    @Nullable
+    public String getCountryOfHost(String host) throws IOException {
+        if (host == null)
+            return null;
+        if (Util.isNumericAddress(host))
+            return getCountry(host);
+
+        try (Cursor cursor = DatabaseHelper.getInstance(context).getResource(host)) {
+            while (cursor.moveToNext()) {
+                String country = getCountry(cursor.getString(0));
+                if (country != null)
+                    return country;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the country of an address
+     *
+     * @param ip Numeric address
+     * @return ISO code of the country, or null if unknown
+     * @throws IOException If the database cannot be opened
+     */
+    @Nullable
+    public String getCountry(String ip) throws IOException {
+        String country = countries.get(ip);
+        if (country == null) {
+            country = lookup(ip);
+            countries.put(ip, country);
+        }
+        return (NONE.equals(country) ? null : country);
+    }
+
+    private String lookup(String ip) throws IOException {
+        if (!Util.isNumericAddress(ip))
+            return NONE;
+
+        try {
+            // Numeric addresses are parsed, not resolved
+            String code = getReader().country(InetAddress.getByName(ip)).getCountry().getIsoCode();
+            return (code == null ? NONE : code);
+        } catch (AddressNotFoundException ignored) {
+            return NONE;
+        } catch (GeoIp2Exception ex) {
+            Log.w(TAG, ex.toString());
+            return NONE;
+        }
+    }
+
+    private synchronized DatabaseReader getReader() throws IOException {
+        if (reader == null) {
+            File file = new File(context.getFilesDir(), ASSET);
+            if (!file.exists() || file.lastModified() < getLastUpdateTime())
+                copyAsset(file);
+
+            reader = new DatabaseReader.Builder(file)
+                    .fileMode(Reader.FileMode.MEMORY_MAPPED)
+                    .build();
+            Log.i(TAG, "Opened " + file + " size=" + file.length());
+        }
+        return reader;
+    }
+
+    private void copyAsset(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (InputStream in = context.getAssets().open(ASSET);
+             OutputStream out = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                out.write(buffer, 0, len);
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private long getLastUpdateTime() {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return 0;
+        }
+    }
+}
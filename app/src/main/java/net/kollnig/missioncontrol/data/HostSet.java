@@ -0,0 +1,52 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable set of blocked hosts, as read from a hosts file
+ */
+public interface HostSet {
+    HostSet EMPTY = new HostSet() {
+        @Override
+        public boolean contains(@NonNull CharSequence host) {
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    };
+
+    /**
+     * Check if host is listed, exactly
+     *
+     * @param host Hostname of interest
+     * @return Whether the host is listed
+     */
+    boolean contains(@NonNull CharSequence host);
+
+    /**
+     * Get number of listed hosts
+     *
+     * @return Number of hosts
+     */
+    int size();
+}
@@ -20,10 +20,16 @@ import static net.kollnig.missioncontrol.data.TrackerBlocklist.PREF_BLOCKLIST;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
+import eu.faircode.netguard.ServiceSinkhole;
+import eu.faircode.netguard.UidSet;
+
 /**
  * Stores those apps whose access to internet is blocked.
  * <p>
@@ -31,14 +37,23 @@ import java.util.Set;
  */
 public class InternetBlocklist {
     public static final String SHARED_PREFS_INTERNET_BLOCKLIST_APPS_KEY = "INTERNET_BLOCKLIST_APPS_KEY";
+    private static final String TAG = InternetBlocklist.class.getSimpleName();
+    private static final String JOURNAL = "internet_blocklist.bin";
     private static InternetBlocklist instance;
-    private final HashSet<Integer> blockmap = new HashSet<>();
+    /**
+     * Replaced as a whole on changes, so that lookups need no locking.
+     */
+    private volatile UidSet blockmap = UidSet.EMPTY;
+    private final BlocklistJournal journal;
 
     private InternetBlocklist(Context c) {
-        // Initialize Concurrent Set using values from shared preferences if possible.
+        // Initialize from the journal, or else from shared preferences if possible.
         if (c != null) {
-            loadSettings(c);
-        }
+            journal = new BlocklistJournal(new File(c.getFilesDir(), JOURNAL));
+            if (!loadJournal())
+                loadSettings(c);
+        } else
+            journal = null;
     }
 
     /**
@@ -54,21 +69,78 @@ public class InternetBlocklist {
     }
 
     /**
-     * Load past settings
+     * Load settings from the journal
+     *
+     * @return Whether the journal could be read
+     */
+    private synchronized boolean loadJournal() {
+        if (!journal.exists())
+            return false;
+
+        final Set<Integer> set = new HashSet<>();
+        try {
+            journal.replay((op, uid, key) -> {
+                if (op == BlocklistJournal.OP_ADD)
+                    set.add(uid);
+                else if (op == BlocklistJournal.OP_REMOVE)
+                    set.remove(uid);
+                else if (op == BlocklistJournal.OP_CLEAR)
+                    set.clear();
+            });
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return false;
+        }
+
+        blockmap = UidSet.of(set);
+        ServiceSinkhole.invalidateDecisions();
+        return true;
+    }
+
+    /**
+     * Write an edit to the journal, compacting it if needed
+     */
+    private void persist(byte op, int uid) {
+        if (journal == null)
+            return;
+
+        journal.append(op, uid, null);
+        if (journal.needsCompaction(blockmap.size()))
+            compact();
+    }
+
+    private void compact() {
+        if (journal == null)
+            return;
+
+        final Set<Integer> current = blockmap.toSet();
+        journal.compact(writer -> {
+            for (int uid : current)
+                writer.add(uid, null);
+        });
+    }
+
+    /**
+     * Load past settings from shared preferences, as stored by earlier versions or imported,
+     * and replace the journal
      *
      * @param c Context
      */
-    public void loadSettings(Context c) {
+    public synchronized void loadSettings(Context c) {
         SharedPreferences prefs = c.getSharedPreferences(PREF_BLOCKLIST, Context.MODE_PRIVATE);
         Set<String> set = prefs.getStringSet(SHARED_PREFS_INTERNET_BLOCKLIST_APPS_KEY, null);
 
         if (set != null) {
-            blockmap.clear();
+            Set<Integer> uids = new HashSet<>();
             for (String id : set) {
                 int uid = Integer.parseInt(id);
-                blockmap.add(uid);
+                uids.add(uid);
             }
+            blockmap = UidSet.of(uids);
         }
+
+        compact();
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -77,14 +149,16 @@ public class InternetBlocklist {
      * @return Set of uids
      */
     public Set<Integer> getBlocklist() {
-        return blockmap;
+        return blockmap.toSet();
     }
 
     /**
      * Clear blocklist
      */
-    public void clear() {
-        blockmap.clear();
+    public synchronized void clear() {
+        blockmap = UidSet.EMPTY;
+        persist(BlocklistJournal.OP_CLEAR, 0);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -93,7 +167,9 @@ public class InternetBlocklist {
      * @param uid Uid of app to block internet
      */
     public synchronized void block(int uid) {
-        blockmap.add(uid);
+        blockmap = blockmap.with(uid);
+        persist(BlocklistJournal.OP_ADD, uid);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -102,7 +178,9 @@ public class InternetBlocklist {
      * @param uid Uid of app to unblock internet
      */
     public synchronized void unblock(int uid) {
-        blockmap.remove(uid);
+        blockmap = blockmap.without(uid);
+        persist(BlocklistJournal.OP_REMOVE, uid);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
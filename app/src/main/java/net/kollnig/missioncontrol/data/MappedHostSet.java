@@ -0,0 +1,218 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Sorted, front-coded host set, queried in place from a (memory-mapped) buffer.
+ * <p>
+ * Layout (big-endian): magic, format, stamp (long), count, block size, block count, data size,
+ * block offsets, data. Hosts are grouped into blocks; the first host of a block is stored in full
+ * (length, bytes), the others as shared prefix length, suffix length and suffix bytes.
+ * The same layout is written by trackerdb.gradle for the bundled hosts list.
+ */
+public class MappedHostSet implements HostSet {
+    private static final int MAGIC = 0x54434853; // TCHS
+    private static final int FORMAT = 1;
+    private static final int HEADER = 32;
+    private static final int BLOCK_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final long stamp;
+    private final int count;
+    private final int blockCount;
+    private final int dataPos;
+
+    public MappedHostSet(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a host set");
+        if (buffer.getInt(4) != FORMAT)
+            throw new IOException("Unsupported host set format " + buffer.getInt(4));
+
+        stamp = buffer.getLong(8);
+        count = buffer.getInt(16);
+        blockCount = buffer.getInt(24);
+        dataPos = HEADER + 4 * blockCount;
+
+        if (buffer.getInt(20) != BLOCK_SIZE
+                || dataPos + (long) buffer.getInt(28) > buffer.capacity())
+            throw new IOException("Corrupt host set");
+    }
+
+    /**
+     * Memory-map a host set file
+     *
+     * @param file Host set, as written by {@link #write(Collection, long, File)}
+     * @return Host set
+     * @throws IOException If the file cannot be read
+     */
+    public static MappedHostSet open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return new MappedHostSet(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write host set file. The file is replaced atomically, so that existing mappings stay valid.
+     *
+     * @param hosts Sorted, distinct hosts
+     * @param stamp Stamp to identify the source of the hosts, e.g. its modification time
+     * @param file  File to write to
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(Collection<String> hosts, long stamp, File file) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] blocks = new int[(hosts.size() + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        int count = 0;
+        byte[] previous = null;
+        for (String host : hosts) {
+            byte[] bytes = host.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 255)
+                continue;
+
+            int shared = 0;
+            if (count % BLOCK_SIZE == 0)
+                blocks[count / BLOCK_SIZE] = data.size();
+            else {
+                int max = Math.min(previous.length, bytes.length);
+                while (shared < max && previous[shared] == bytes[shared])
+                    shared++;
+                data.write(shared);
+            }
+            data.write(bytes.length - shared);
+            data.write(bytes, shared, bytes.length - shared);
+
+            previous = bytes;
+            count++;
+        }
+        int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(stamp);
+            out.writeInt(count);
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(blockCount);
+            out.writeInt(data.size());
+            for (int i = 0; i < blockCount; i++)
+                out.writeInt(blocks[i]);
+            data.writeTo(out);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not replace " + file);
+    }
+
+    /**
+     * Get stamp of the source of the hosts
+     *
+     * @return Stamp, as passed to {@link #write(Collection, long, File)}
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean contains(@NonNull CharSequence host) {
+        // Find last block starting with a host not greater than the one of interest
+        int lo = 0;
+        int hi = blockCount - 1;
+        int block = -1;
+        int match = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = dataPos + buffer.getInt(HEADER + 4 * mid);
+            int len = buffer.get(pos) & 0xff;
+            int common = commonPrefix(pos + 1, len, host, 0);
+            if (common == len && common == host.length())
+                return true;
+            if (common == host.length()
+                    || (common < len && (buffer.get(pos + 1 + common) & 0xff) > host.charAt(common)))
+                hi = mid - 1;
+            else {
+                block = mid;
+                match = common;
+                lo = mid + 1;
+            }
+        }
+        if (block < 0)
+            return false;
+
+        // Scan block; match is the common prefix length of the previous host and the one of interest
+        int pos = dataPos + buffer.getInt(HEADER + 4 * block);
+        pos += 1 + (buffer.get(pos) & 0xff);
+        int end = Math.min(count - block * BLOCK_SIZE, BLOCK_SIZE);
+        for (int i = 1; i < end; i++) {
+            int shared = buffer.get(pos) & 0xff;
+            int len = buffer.get(pos + 1) & 0xff;
+            pos += 2;
+
+            if (shared < match) // diverges earlier, and is greater
+                return false;
+
+            if (shared == match) {
+                int common = commonPrefix(pos, len, host, shared);
+                int suffix = common - shared;
+                if (suffix == len && common == host.length())
+                    return true;
+                if (common == host.length()
+                        || (suffix < len && (buffer.get(pos + suffix) & 0xff) > host.charAt(common)))
+                    return false;
+                match = common;
+            }
+            // shared > match: still agrees with the previous host where it is smaller
+
+            pos += len;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get length of common prefix of stored bytes and host, starting at the given host offset
+     */
+    private int commonPrefix(int pos, int len, CharSequence host, int offset) {
+        int i = 0;
+        int max = Math.min(len, host.length() - offset);
+        while (i < max && (buffer.get(pos + i) & 0xff) == host.charAt(offset + i))
+            i++;
+        return offset + i;
+    }
+}
@@ -31,6 +31,9 @@ public class Tracker {
     public String category;
     public Long lastSeen;
     public String country;
+    private int categoryId = -1;
+    private int blockingKeyId = -1;
+    private int keyCount = -1; // of TrackerBlocklist, when the ids were looked up
 
     /**
      * Creates class for tracker seen in apps' network traffic
@@ -90,6 +93,39 @@ public class Tracker {
         return category;
     }
 
+    /**
+     * Get id of the category, as used by {@link TrackerBlocklist}
+     *
+     * @return Id of the category, or -1 if never unblocked
+     */
+    public int getCategoryId() {
+        updateKeyIds();
+        return categoryId;
+    }
+
+    /**
+     * Get id of the blocking key, as used by {@link TrackerBlocklist}
+     *
+     * @return Id of the blocking key, or -1 if never unblocked
+     */
+    public int getBlockingKeyId() {
+        updateKeyIds();
+        return blockingKeyId;
+    }
+
+    private void updateKeyIds() {
+        // Ids never change once assigned, missing ids only if keys were added since
+        int count = TrackerBlocklist.getKeyCount();
+        if (count == keyCount || (categoryId >= 0 && blockingKeyId >= 0))
+            return;
+
+        if (categoryId < 0)
+            categoryId = TrackerBlocklist.getKeyId(category);
+        if (blockingKeyId < 0)
+            blockingKeyId = TrackerBlocklist.getKeyId(TrackerBlocklist.getBlockingKey(this));
+        keyCount = count;
+    }
+
     /**
      * Add observed tracker host
      *
@@ -19,13 +19,20 @@ package net.kollnig.missioncontrol.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.util.Log;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+
+import eu.faircode.netguard.ServiceSinkhole;
 
 /**
  * Stores what trackers are blocked, for each app.
@@ -34,16 +41,30 @@ public class TrackerBlocklist {
     public static final String SHARED_PREFS_BLOCKLIST_APPS_KEY = "APPS_BLOCKLIST_APPS_KEY";
     final public static String PREF_BLOCKLIST = "blocklist";
     public static String NECESSARY_CATEGORY = "Content";
+    private static final String TAG = TrackerBlocklist.class.getSimpleName();
+    private static final String JOURNAL = "tracker_blocklist.bin";
     private static TrackerBlocklist instance;
     /**
-     * Whilst blockmap is a list of apps to block, the set is a set of trackers not to block.
+     * Dense ids of tracker categories and blocking keys not to block, assigned when the blocklist
+     * is loaded or changed. Replaced as a whole when keys are added, so that lookups need no locking.
+     */
+    private static volatile Map<String, Integer> keyIds = Collections.emptyMap();
+    private static final Object keyLock = new Object();
+    /**
+     * Whilst blockmap is a list of apps to block, the sets are sets of trackers not to block.
+     * Replaced as a whole on changes, so that lookups need no locking.
      */
-    private final Map<Integer, Set<String>> blockmap = new ConcurrentHashMap<>();
+    private volatile Blockmap blockmap = Blockmap.EMPTY;
+    private final BlocklistJournal journal;
 
     private TrackerBlocklist(Context c) {
-        // Initialize Concurrent Set using values from shared preferences if possible.
-        if (c != null)
-            loadSettings(c);
+        // Initialize from the journal, or else from shared preferences if possible.
+        if (c != null) {
+            journal = new BlocklistJournal(new File(c.getFilesDir(), JOURNAL));
+            if (!loadJournal())
+                loadSettings(c);
+        } else
+            journal = null;
     }
 
     /**
@@ -70,16 +91,123 @@ public class TrackerBlocklist {
     }
 
     /**
-     * Load past settings
+     * Get dense id of a tracker category or blocking key
+     *
+     * @param key Category or key of {@link #getBlockingKey(Tracker)}
+     * @return Id, the same for equal keys, or -1 if the key was never unblocked
+     */
+    public static int getKeyId(String key) {
+        Integer id = keyIds.get(key);
+        return (id == null ? -1 : id);
+    }
+
+    /**
+     * Get number of assigned key ids, which changes only when ids are added
+     *
+     * @return Number of key ids
+     */
+    public static int getKeyCount() {
+        return keyIds.size();
+    }
+
+    private static int[] internKeys(Set<String> keys) {
+        synchronized (keyLock) {
+            Map<String, Integer> ids = keyIds;
+            boolean copied = false;
+            int[] result = new int[keys.size()];
+            int i = 0;
+            for (String key : keys) {
+                Integer id = ids.get(key);
+                if (id == null) {
+                    if (!copied) {
+                        ids = new HashMap<>(ids);
+                        copied = true;
+                    }
+                    id = ids.size();
+                    ids.put(key, id);
+                }
+                result[i++] = id;
+            }
+            if (copied)
+                keyIds = ids;
+            return result;
+        }
+    }
+
+    /**
+     * Load settings from the journal
+     *
+     * @return Whether the journal could be read
+     */
+    private synchronized boolean loadJournal() {
+        if (!journal.exists())
+            return false;
+
+        final Map<Integer, Set<String>> map = new HashMap<>();
+        try {
+            journal.replay((op, uid, key) -> {
+                if (op == BlocklistJournal.OP_ADD) {
+                    Set<String> subset = map.get(uid);
+                    if (subset == null) {
+                        subset = new HashSet<>();
+                        map.put(uid, subset);
+                    }
+                    subset.add(key);
+                } else if (op == BlocklistJournal.OP_REMOVE) {
+                    Set<String> subset = map.get(uid);
+                    if (subset != null)
+                        subset.remove(key);
+                } else if (op == BlocklistJournal.OP_CLEAR_UID)
+                    map.remove(uid);
+                else if (op == BlocklistJournal.OP_CLEAR)
+                    map.clear();
+            });
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return false;
+        }
+
+        blockmap = new Blockmap(map);
+        ServiceSinkhole.invalidateDecisions();
+        return true;
+    }
+
+    /**
+     * Write an edit to the journal, compacting it if needed
+     */
+    private void persist(byte op, int uid, String key) {
+        if (journal == null)
+            return;
+
+        journal.append(op, uid, key);
+        if (journal.needsCompaction(blockmap.size()))
+            compact();
+    }
+
+    private void compact() {
+        if (journal == null)
+            return;
+
+        final Blockmap current = blockmap;
+        journal.compact(writer -> {
+            for (int uid : current.uids)
+                for (String key : current.get(uid).keys)
+                    writer.add(uid, key);
+        });
+    }
+
+    /**
+     * Load past settings from shared preferences, as stored by earlier versions or imported,
+     * and replace the journal
      *
      * @param c Context
      */
-    public void loadSettings(Context c) {
+    public synchronized void loadSettings(Context c) {
         SharedPreferences prefs = c.getSharedPreferences(PREF_BLOCKLIST, Context.MODE_PRIVATE);
         Set<String> set = prefs.getStringSet(SHARED_PREFS_BLOCKLIST_APPS_KEY, null);
 
         if (set != null) {
-            blockmap.clear();
+            Map<Integer, Set<String>> map = new HashMap<>();
             for (String appUid : set) {
                 // Get saved blocklist for UID
                 Set<String> prefset = prefs.getStringSet
@@ -114,9 +242,13 @@ public class TrackerBlocklist {
                 }
 
                 if (uid >= 0)
-                    blockmap.put(uid, subset);
+                    map.put(uid, subset);
             }
+            blockmap = new Blockmap(map);
         }
+
+        compact();
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -125,7 +257,7 @@ public class TrackerBlocklist {
      * @return Set of apps' uids
      */
     public Set<Integer> getBlocklist() {
-        return blockmap.keySet();
+        return blockmap.getUids();
     }
 
     /**
@@ -135,14 +267,17 @@ public class TrackerBlocklist {
      * @return Information about what specific trackers are blocked
      */
     public Set<String> getSubset(int uid) {
-        return blockmap.get(uid);
+        Subset subset = blockmap.get(uid);
+        return (subset == null ? null : subset.keys);
     }
 
     /**
      * Completely clear blocklist.
      */
-    public void clear() {
-        blockmap.clear();
+    public synchronized void clear() {
+        blockmap = Blockmap.EMPTY;
+        persist(BlocklistJournal.OP_CLEAR, 0, null);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -150,8 +285,10 @@ public class TrackerBlocklist {
      *
      * @param uid Uid of app
      */
-    public void clear(int uid) {
-        blockmap.remove(uid);
+    public synchronized void clear(int uid) {
+        blockmap = blockmap.with(uid, null);
+        persist(BlocklistJournal.OP_CLEAR_UID, uid, null);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -161,10 +298,14 @@ public class TrackerBlocklist {
      * @param t   Key of the tracker to be blocked
      */
     public synchronized void block(int uid, String t) {
-        Set<String> app = blockmap.get(uid);
+        Set<String> app = getSubset(uid);
         if (app == null)
             return;
+        app = new HashSet<>(app);
         app.remove(t);
+        blockmap = blockmap.with(uid, app);
+        persist(BlocklistJournal.OP_REMOVE, uid, t);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -174,14 +315,12 @@ public class TrackerBlocklist {
      * @param t   Key of the tracker to be unblocked
      */
     public synchronized void unblock(int uid, String t) {
-        Set<String> app = blockmap.get(uid);
-
-        if (app == null) {
-            app = new HashSet<>();
-            blockmap.put(uid, app);
-        }
-
+        Set<String> app = getSubset(uid);
+        app = (app == null ? new HashSet<>() : new HashSet<>(app));
         app.add(t);
+        blockmap = blockmap.with(uid, app);
+        persist(BlocklistJournal.OP_ADD, uid, t);
+        ServiceSinkhole.invalidateDecisions();
     }
 
     /**
@@ -212,12 +351,12 @@ public class TrackerBlocklist {
      * @return Whether access to this tracker is blocked
      */
     public boolean blocked(int uid, String key) {
-        Set<String> trackers = this.getSubset(uid);
+        Subset trackers = blockmap.get(uid);
         if (trackers == null) {
             return true;
         }
 
-        return !trackers.contains(key); // negate since it's a whitelist
+        return !trackers.contains(getKeyId(key)); // negate since it's a whitelist
     }
 
     /**
@@ -228,7 +367,121 @@ public class TrackerBlocklist {
      * @return Whether access to this tracker is blocked
      */
     public boolean blockedTracker(int uid, Tracker t) {
-        return blocked(uid, t.category)
-                && blocked(uid, getBlockingKey(t));
+        Subset trackers = blockmap.get(uid);
+        if (trackers == null)
+            return true;
+
+        return !trackers.contains(t.getCategoryId())
+                && !trackers.contains(t.getBlockingKeyId());
+    }
+
+    /**
+     * Trackers not to block for an app, as keys and as a bitset of key ids
+     */
+    private static final class Subset {
+        final Set<String> keys;
+        final long[] bits;
+
+        Subset(Set<String> keys) {
+            this.keys = Collections.unmodifiableSet(keys);
+
+            int[] ids = internKeys(keys);
+            int max = -1;
+            for (int id : ids)
+                max = Math.max(max, id);
+            bits = new long[(max >> 6) + 1];
+            for (int id : ids)
+                bits[id >> 6] |= (1L << id);
+        }
+
+        boolean contains(int id) {
+            if (id < 0)
+                return false;
+            int word = id >> 6;
+            return (word < bits.length && (bits[word] & (1L << id)) != 0);
+        }
+    }
+
+    /**
+     * Immutable map of uids to subsets, looked up without allocation
+     */
+    private static final class Blockmap {
+        static final Blockmap EMPTY = new Blockmap(new int[0], new Subset[0]);
+
+        private final int[] uids; // sorted
+        private final Subset[] subsets;
+
+        private Blockmap(int[] uids, Subset[] subsets) {
+            this.uids = uids;
+            this.subsets = subsets;
+        }
+
+        Blockmap(Map<Integer, Set<String>> map) {
+            uids = new int[map.size()];
+            int i = 0;
+            for (int uid : map.keySet())
+                uids[i++] = uid;
+            Arrays.sort(uids);
+
+            subsets = new Subset[uids.length];
+            for (i = 0; i < uids.length; i++)
+                subsets[i] = new Subset(map.get(uids[i]));
+        }
+
+        Subset get(int uid) {
+            int i = Arrays.binarySearch(uids, uid);
+            return (i < 0 ? null : subsets[i]);
+        }
+
+        int size() {
+            int size = 0;
+            for (Subset subset : subsets)
+                size += subset.keys.size();
+            return size;
+        }
+
+        Set<Integer> getUids() {
+            Set<Integer> result = new HashSet<>();
+            for (int uid : uids)
+                result.add(uid);
+            return result;
+        }
+
+        /**
+         * Copy with the subset of a single app replaced
+         *
+         * @param uid  Uid of the app
+         * @param keys Trackers not to block, or null to remove the app
+         * @return Changed copy
+         */
+        Blockmap with(int uid, Set<String> keys) {
+            int i = Arrays.binarySearch(uids, uid);
+            if (keys == null) {
+                if (i < 0)
+                    return this;
+                int[] u = new int[uids.length - 1];
+                Subset[] s = new Subset[subsets.length - 1];
+                System.arraycopy(uids, 0, u, 0, i);
+                System.arraycopy(uids, i + 1, u, i, u.length - i);
+                System.arraycopy(subsets, 0, s, 0, i);
+                System.arraycopy(subsets, i + 1, s, i, s.length - i);
+                return new Blockmap(u, s);
+            } else if (i >= 0) {
+                Subset[] s = subsets.clone();
+                s[i] = new Subset(keys);
+                return new Blockmap(uids, s);
+            } else {
+                i = -i - 1;
+                int[] u = new int[uids.length + 1];
+                Subset[] s = new Subset[subsets.length + 1];
+                System.arraycopy(uids, 0, u, 0, i);
+                System.arraycopy(uids, i, u, i + 1, uids.length - i);
+                System.arraycopy(subsets, 0, s, 0, i);
+                System.arraycopy(subsets, i, s, i + 1, subsets.length - i);
+                u[i] = uid;
+                s[i] = new Subset(keys);
+                return new Blockmap(u, s);
+            }
+        }
     }
 }
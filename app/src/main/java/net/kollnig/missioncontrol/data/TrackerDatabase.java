@@ -0,0 +1,207 @@
+/*
+ * TrackerControl is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrackerControl is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TrackerControl. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright © 2019–2020 Konrad Kollnig (University of Oxford)
+ */
+
+package net.kollnig.missioncontrol.data;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of the tracker database, as compiled at build time by trackerdb.gradle.
+ * <p>
+ * The asset is memory-mapped and queried in place, so none of its tables live on the heap.
+ */
+public class TrackerDatabase {
+    public static final String ASSET = "trackers.bin";
+    private static final int MAGIC = 0x54434442; // TCDB
+    private static final int FORMAT = 2;
+
+    private static TrackerDatabase instance;
+
+    private final ByteBuffer buffer;
+    private final long version;
+    private final int stringCount;
+    private final int trackerCount;
+    private final int domainCount;
+    private final int ipCount;
+    private final int stringIndexPos;
+    private final int stringDataPos;
+    private final int trackerPos;
+    private final int domainPos;
+    private final int hostPos;
+    private final int ipPos;
+    private final HostSet hosts;
+
+    TrackerDatabase(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a tracker database");
+        if (buffer.getInt(4) != FORMAT)
+            throw new IOException("Unsupported tracker database format " + buffer.getInt(4));
+
+        int pos = buffer.getInt(8); // header size
+        version = buffer.getLong(16);
+        stringCount = buffer.getInt(24);
+        trackerCount = buffer.getInt(28);
+        domainCount = buffer.getInt(32);
+        ipCount = buffer.getInt(40);
+        stringIndexPos = buffer.getInt(44);
+        stringDataPos = buffer.getInt(48);
+        trackerPos = buffer.getInt(52);
+        domainPos = buffer.getInt(56);
+        hostPos = buffer.getInt(60);
+        ipPos = buffer.getInt(64);
+
+        if (stringIndexPos < pos || ipPos + 4L * ipCount > buffer.capacity())
+            throw new IOException("Truncated tracker database");
+
+        ByteBuffer section = buffer.duplicate();
+        section.position(hostPos);
+        section.limit(ipPos);
+        hosts = new MappedHostSet(section.slice());
+    }
+
+    /**
+     * Get an instance of the tracker database
+     *
+     * @param c Context
+     * @return Instance of the tracker database
+     * @throws IOException If the asset cannot be read
+     */
+    public static synchronized TrackerDatabase getInstance(Context c) throws IOException {
+        if (instance == null)
+            instance = new TrackerDatabase(map(c));
+
+        return instance;
+    }
+
+    /**
+     * Memory-map the asset, or read it if it has been compressed
+     *
+     * @param c Context
+     * @return Buffer with contents of the asset
+     * @throws IOException If the asset cannot be read
+     */
+    private static ByteBuffer map(Context c) throws IOException {
+        try (AssetFileDescriptor afd = c.getAssets().openFd(ASSET);
+             FileInputStream fis = afd.createInputStream()) {
+            return fis.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+        } catch (IOException ignored) {
+            // Compressed assets cannot be mapped
+        }
+
+        try (InputStream is = c.getAssets().open(ASSET)) {
+            byte[] bytes = new byte[8192];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(is.available());
+            int len;
+            while ((len = is.read(bytes)) > 0) {
+                if (buffer.remaining() < len) {
+                    ByteBuffer grown = ByteBuffer.allocateDirect(2 * buffer.capacity() + len);
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                }
+                buffer.put(bytes, 0, len);
+            }
+            buffer.flip();
+            return buffer.slice();
+        }
+    }
+
+    /**
+     * Get version of the tracker lists, changes whenever the lists are updated
+     *
+     * @return Version of the tracker lists
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getTrackerCount() {
+        return trackerCount;
+    }
+
+    @NonNull
+    public String getTrackerName(int tracker) {
+        return getString(buffer.getInt(trackerPos + 12 * tracker));
+    }
+
+    @NonNull
+    public String getTrackerCategory(int tracker) {
+        return getString(buffer.getInt(trackerPos + 12 * tracker + 4));
+    }
+
+    @Nullable
+    public String getTrackerCountry(int tracker) {
+        return getString(buffer.getInt(trackerPos + 12 * tracker + 8));
+    }
+
+    public int getDomainCount() {
+        return domainCount;
+    }
+
+    @NonNull
+    public String getDomain(int domain) {
+        return getString(buffer.getInt(domainPos + 8 * domain));
+    }
+
+    public int getDomainTracker(int domain) {
+        return buffer.getInt(domainPos + 8 * domain + 4);
+    }
+
+    /**
+     * Get bundled hosts list, queried in place
+     *
+     * @return Set of hosts
+     */
+    @NonNull
+    public HostSet getHosts() {
+        return hosts;
+    }
+
+    public int getIpCount() {
+        return ipCount;
+    }
+
+    @NonNull
+    public String getIp(int ip) {
+        return getString(buffer.getInt(ipPos + 4 * ip));
+    }
+
+    private String getString(int id) {
+        if (id < 0)
+            return null;
+
+        int start = buffer.getInt(stringIndexPos + 4 * id);
+        int end = buffer.getInt(stringIndexPos + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(stringDataPos + start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -22,31 +22,26 @@ import static net.kollnig.missioncontrol.data.TrackerCategory.UNCATEGORISED;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.collection.ArrayMap;
 import androidx.preference.PreferenceManager;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import eu.faircode.netguard.DatabaseHelper;
 import eu.faircode.netguard.ServiceSinkhole;
@@ -56,15 +51,40 @@ import eu.faircode.netguard.ServiceSinkhole;
  */
 public class TrackerList {
     private static final String TAG = TrackerList.class.getSimpleName();
-    private static final List<String> ignoreDomains = Collections.singletonList("cloudfront.net, fastly.net");
-    private static final Map<String, Tracker> hostnameToTracker = new ConcurrentHashMap<>();
-    public static Set<String> trackingIps = new HashSet<>();
     public static String TRACKER_HOSTLIST = "TRACKER_HOSTLIST";
     private static final Tracker hostlistTracker = new Tracker(TRACKER_HOSTLIST, UNCATEGORISED);
     private static TrackerList instance;
-    private static boolean domainBasedBlocking;
+    private static volatile Snapshot snapshot = new Snapshot(DomainTrie.EMPTY, Collections.emptySet(), false, 0);
     private final DatabaseHelper databaseHelper;
 
+    private static final long UNWRITTEN = 10 * 1000L; // milliseconds, see LogBatch
+    private static final int MAX_RECENT = 4096; // seen trackers, during a long rebuild
+
+    // Seen tracker companies, uid -> tracker name -> last seen
+    private Map<Integer, Map<String, Long>> seenTrackers = new HashMap<>();
+    private int seenGeneration = -1;
+    private int seenLists = -1;
+    private int lists = 0; // changes of the tracker database
+
+    // Recently seen tracker companies, possibly not written to the access records yet
+    private final ArrayDeque<Seen> recentSeen = new ArrayDeque<>();
+    private final Object rebuildLock = new Object();
+    private boolean rebuilding = false;
+
+    private static final class Seen {
+        final int uid;
+        final String name;
+        final long time;
+        final long added;
+
+        Seen(int uid, String name, long time, long added) {
+            this.uid = uid;
+            this.name = name;
+            this.time = time;
+            this.added = added;
+        }
+    }
+
     private TrackerList(Context c) {
         databaseHelper = DatabaseHelper.getInstance(c);
         loadTrackers(c);
@@ -76,7 +96,7 @@ public class TrackerList {
      * @param c Context
      * @return Instance of the tracker database
      */
-    public static TrackerList getInstance(Context c) {
+    public static synchronized TrackerList getInstance(Context c) {
         if (instance == null)
             instance = new TrackerList(c);
 
@@ -90,72 +110,83 @@ public class TrackerList {
      * @return A {@link Tracker} object, if host is null, null otherwise
      */
     public static Tracker findTracker(@NonNull String hostname) {
-        Tracker t = null;
-
-        if (hostnameToTracker.containsKey(hostname)) {
-            t = hostnameToTracker.get(hostname);
-        } else { // check subdomains
-            for (int i = 0; i < hostname.length(); i++) {
-                if (hostname.charAt(i) == '.') {
-                    t = hostnameToTracker.get(hostname.substring(i + 1));
-                    if (t != null)
-                        break;
-                }
-            }
-        }
+        Snapshot current = snapshot;
+        int found = current.index.lookup(hostname);
 
-        if (t == null
-                && ServiceSinkhole.mapHostsBlocked.containsKey(hostname))
-            if (domainBasedBlocking)
-                return hostlistTracker;
-            else {
-                t = new Tracker(hostname, UNCATEGORISED);
-                hostnameToTracker.put(hostname, t);
-                return t;
-            }
+        if (found >= 0)
+            return current.index.getTracker(found);
 
-        if (t == null
-                && trackingIps.contains(hostname))
-            if (domainBasedBlocking)
+        if (found == DomainTrie.HOSTS_ONLY
+                || ServiceSinkhole.hostsList.contains(hostname))
+            if (current.domainBasedBlocking)
                 return hostlistTracker;
-            else {
+            else
                 return new Tracker(hostname, UNCATEGORISED);
-            }
 
-        return t;
+        return null;
     }
 
     /**
-     * Load tracker domain database
+     * Checks IP-based tracker blocklist
      *
-     * @param c Context
+     * @param address A numeric address of interest
+     * @return Whether the address belongs to a tracker
      */
-    public void loadTrackers(Context c) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-        domainBasedBlocking = prefs.getBoolean("domain_based_blocked", false);
+    public static boolean isTrackingIp(@NonNull String address) {
+        return snapshot.trackingIps.contains(address);
+    }
 
-        loadXrayTrackers(c);
-        loadDisconnectTrackers(c); // loaded last to overwrite X-Ray hosts with extra category information
-        loadIpBlocklist(c);
+    /**
+     * Get version of the tracker lists used by {@link #findTracker(String)}, which is stored with
+     * the tracker classification of access records
+     * <p>
+     * The version depends on the content of the lists only, not on whether hosts are blocked.
+     *
+     * @return Version of the tracker lists
+     */
+    public static int getListVersion() {
+        Snapshot current = snapshot;
+        HostSet hosts = ServiceSinkhole.hostsList;
+        long stamp = (hosts instanceof MappedHostSet ? ((MappedHostSet) hosts).getStamp() : hosts.size());
+        return Objects.hash(current.version, current.domainBasedBlocking, stamp);
     }
 
     /**
-     * Load database of tracker IPs
+     * Get classifier for records of {@link DatabaseHelper#getHosts()}
+     *
+     * @param cursor Access records
+     * @return Classifier, to be closed after reading
+     */
+    public Classifier getClassifier(Cursor cursor) {
+        return new Classifier(databaseHelper, cursor);
+    }
+
+    /**
+     * Load tracker domain database
+     * <p>
+     * The new database is built aside and published at once, so that concurrent lookups
+     * never see a partially loaded list.
      *
      * @param c Context
      */
-    private void loadIpBlocklist(Context c) {
-        try {
-            InputStream is = c.getAssets().open("ip_blocklist.txt");
-            BufferedReader bfr = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = bfr.readLine()) != null) {
-                if (line.startsWith("#"))
-                    continue;
-                trackingIps.add(line);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Loading IP blocklist failed.. ", e);
+    public void loadTrackers(Context c) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+        boolean domainBasedBlocking = prefs.getBoolean("domain_based_blocked", false);
+
+        Map<String, Tracker> hostnameToTracker = new HashMap<>();
+        Set<String> trackingIps = new HashSet<>();
+        long version = loadTrackerDatabase(c, domainBasedBlocking, hostnameToTracker, trackingIps);
+
+        DomainTrie index = new DomainTrie.Builder()
+                .addTrackers(hostnameToTracker)
+                .addHosts(trackingIps)
+                .build();
+        snapshot = new Snapshot(index, Collections.unmodifiableSet(trackingIps), domainBasedBlocking, version);
+        Log.i(TAG, "Compiled domain index with " + index.size() + " nodes");
+
+        // Hosts may belong to other companies now
+        synchronized (this) {
+            lists++;
         }
     }
 
@@ -163,61 +194,112 @@ public class TrackerList {
      * Retrieves information about number of contacted tracking companies, for all apps
      * @return Number of contacted tracking companies, for all apps
      */
-    public synchronized Pair<Pair<Map<Integer, Integer>, Integer>, Pair<Map<Integer, Integer>, Integer>> getTrackerCountsAndTotal() {
-        Map<Integer, Set<String>> trackers = new ArrayMap<>();
-        Map<Integer, Set<String>> trackersWeek = new ArrayMap<>();
+    public Pair<Pair<Map<Integer, Integer>, Integer>, Pair<Map<Integer, Integer>, Integer>> getTrackerCountsAndTotal() {
+        loadSeenTrackers();
 
-        try (Cursor cursor = databaseHelper.getHosts()) {
-            long limit = new Date().getTime() - 7 * 24 * 3600 * 1000L;
-            if (cursor.moveToFirst()) {
-                do {
-                    int appUid = cursor.getInt(cursor.getColumnIndexOrThrow("uid"));
-                    String hostname = cursor.getString(cursor.getColumnIndexOrThrow("daddr"));
-                    Tracker tracker = findTracker(hostname);
-                    checkTracker(trackers, appUid, tracker);
-
-                    long time = cursor.getLong(cursor.getColumnIndexOrThrow("time"));
-                    if (time > limit)
-                        checkTracker(trackersWeek, appUid, tracker);
-                } while (cursor.moveToNext());
-            }
+        synchronized (this) {
+            return countSeenTrackers();
         }
+    }
 
-        return new Pair<>(countTrackers(trackers), countTrackers(trackersWeek));
+    private Pair<Pair<Map<Integer, Integer>, Integer>, Pair<Map<Integer, Integer>, Integer>> countSeenTrackers() {
+        long limit = new Date().getTime() - 7 * 24 * 3600 * 1000L;
+        Map<Integer, Integer> trackerCounts = new ArrayMap<>();
+        Map<Integer, Integer> trackerCountsWeek = new ArrayMap<>();
+        int total = 0;
+        int totalWeek = 0;
+        for (Map.Entry<Integer, Map<String, Long>> entry : seenTrackers.entrySet()) {
+            int count = entry.getValue().size();
+            int countWeek = 0;
+            for (long lastSeen : entry.getValue().values())
+                if (lastSeen > limit)
+                    countWeek++;
+
+            trackerCounts.put(entry.getKey(), count);
+            trackerCountsWeek.put(entry.getKey(), countWeek);
+            total += count;
+            totalWeek += countWeek;
+        }
+
+        return new Pair<>(new Pair<>(trackerCounts, total), new Pair<>(trackerCountsWeek, totalWeek));
     }
 
     /**
-     * Helper method to check tracker
-     * @param trackers Set of seen trackers
-     * @param appUid Uid of app
+     * Record that an app contacted a tracker company
+     *
+     * @param uid     Uid of app
      * @param tracker Seen tracker
+     * @param time    Time seen
      */
-    private void checkTracker(Map<Integer, Set<String>> trackers, int appUid, Tracker tracker) {
-        Set<String> observedTrackers = trackers.get(appUid);
-        if (observedTrackers == null) {
-            observedTrackers = new HashSet<>();
-            trackers.put(appUid, observedTrackers);
+    public synchronized void addSeenTracker(int uid, Tracker tracker, long time) {
+        addSeen(seenTrackers, uid, tracker.getName(), time);
+
+        // Kept for a rebuild, until surely written to the access records
+        long now = SystemClock.elapsedRealtime();
+        if (!rebuilding)
+            while (!recentSeen.isEmpty() && now - recentSeen.peekFirst().added > UNWRITTEN)
+                recentSeen.pollFirst();
+        recentSeen.addLast(new Seen(uid, tracker.getName(), time, now));
+
+        // The oldest are most likely written and read by the rebuild
+        while (recentSeen.size() > MAX_RECENT)
+            recentSeen.pollFirst();
+    }
+
+    private static void addSeen(Map<Integer, Map<String, Long>> seenTrackers, int uid, String name, long time) {
+        Map<String, Long> seen = seenTrackers.get(uid);
+        if (seen == null) {
+            seen = new HashMap<>();
+            seenTrackers.put(uid, seen);
         }
 
-        if (tracker != null)
-            observedTrackers.add(tracker.getName());
+        Long lastSeen = seen.get(name);
+        if (lastSeen == null || lastSeen < time)
+            seen.put(name, time);
     }
 
     /**
-     * Count the number of seen trackers
-     * @param trackers Set of seen trackers
-     * @return
+     * Rebuild seen tracker companies from all access records, which is only needed once, or
+     * after records were removed or the tracker database changed.
+     * <p>
+     * The records are read without holding the lock of {@link #addSeenTracker}, so that logging
+     * is not held up. Companies seen meanwhile, or not yet written, are added after reading.
      */
-    @NonNull
-    private Pair<Map<Integer, Integer>, Integer> countTrackers(Map<Integer, Set<String>> trackers) {
-        int totalTracker = 0;
-        Map<Integer, Integer> trackerCounts = new ArrayMap<>();
-        for (Map.Entry<Integer, Set<String>> entry : trackers.entrySet()) {
-            trackerCounts.put(entry.getKey(), entry.getValue().size());
-            totalTracker += entry.getValue().size();
-        }
+    private void loadSeenTrackers() {
+        synchronized (rebuildLock) {
+            int generation = databaseHelper.getAccessGeneration();
+            int current;
+            synchronized (this) {
+                if (seenGeneration == generation && seenLists == lists)
+                    return;
+                current = lists;
+                rebuilding = true;
+            }
+
+            Map<Integer, Map<String, Long>> seen = new HashMap<>();
+            try (Cursor cursor = databaseHelper.getHosts();
+                 Classifier classifier = getClassifier(cursor)) {
+                int colUid = cursor.getColumnIndexOrThrow("uid");
+                int colTime = cursor.getColumnIndexOrThrow("time");
+                while (cursor.moveToNext()) {
+                    Tracker tracker = classifier.getTracker();
+                    if (tracker != null)
+                        addSeen(seen, cursor.getInt(colUid), tracker.getName(), cursor.getLong(colTime));
+                }
+            } finally {
+                synchronized (this) {
+                    rebuilding = false;
+                }
+            }
 
-        return new Pair<>(trackerCounts, totalTracker);
+            synchronized (this) {
+                for (Seen recent : recentSeen)
+                    addSeen(seen, recent.uid, recent.name, recent.time);
+                seenTrackers = seen;
+                seenGeneration = generation;
+                seenLists = current;
+            }
+        }
     }
 
     /**
@@ -235,56 +317,57 @@ public class TrackerList {
     public synchronized List<TrackerCategory> getAppTrackers(Context c, int uid) {
         Map<String, TrackerCategory> categoryToTracker = new ArrayMap<>();
 
-        Cursor cursor = databaseHelper.getHosts(uid);
-        if (cursor.moveToFirst()) {
-            outer:
-            do {
-                String host = cursor.getString(cursor.getColumnIndexOrThrow("daddr"));
-                long lastSeen = cursor.getLong(cursor.getColumnIndexOrThrow("time"));
-                boolean uncertain = cursor.getInt(cursor.getColumnIndexOrThrow("uncertain")) == 2;
-
-                Tracker tracker = findTracker(host);
-                if (tracker == null)
-                    continue;
-
-                String category = tracker.category;
-                String name = tracker.name;
-                if (category == null || category.equals("null"))
-                    category = name;
-
-                TrackerCategory categoryCompany = categoryToTracker.get(category);
-                if (categoryCompany == null) {
-                    categoryCompany = new TrackerCategory(category, lastSeen);
-                    categoryToTracker.put(category, categoryCompany);
-                } else {
-                    if (categoryCompany.lastSeen < lastSeen)
-                        categoryCompany.lastSeen = lastSeen;
-                }
+        try (Cursor cursor = databaseHelper.getHosts(uid);
+             Classifier classifier = getClassifier(cursor)) {
+            if (cursor.moveToFirst()) {
+                outer:
+                do {
+                    String host = cursor.getString(cursor.getColumnIndexOrThrow("daddr"));
+                    long lastSeen = cursor.getLong(cursor.getColumnIndexOrThrow("time"));
+                    boolean uncertain = cursor.getInt(cursor.getColumnIndexOrThrow("uncertain")) == 2;
 
-                if (uncertain) {
-                    host = host + " *";
-                    categoryCompany.setUncertain(true);
-                }
+                    Tracker tracker = classifier.getTracker();
+                    if (tracker == null)
+                        continue;
+
+                    String category = tracker.category;
+                    String name = tracker.name;
+                    if (category == null || category.equals("null"))
+                        category = name;
+
+                    TrackerCategory categoryCompany = categoryToTracker.get(category);
+                    if (categoryCompany == null) {
+                        categoryCompany = new TrackerCategory(category, lastSeen);
+                        categoryToTracker.put(category, categoryCompany);
+                    } else {
+                        if (categoryCompany.lastSeen < lastSeen)
+                            categoryCompany.lastSeen = lastSeen;
+                    }
 
-                // check if tracker has already been added
-                for (Tracker child : categoryCompany.getChildren()) {
-                    if (child.name != null
-                            && child.name.equals(name)) {
-                        child.addHost(host);
+                    if (uncertain) {
+                        host = host + " *";
+                        categoryCompany.setUncertain(true);
+                    }
 
-                        if (child.lastSeen < lastSeen)
-                            child.lastSeen = lastSeen;
+                    // check if tracker has already been added
+                    for (Tracker child : categoryCompany.getChildren()) {
+                        if (child.name != null
+                                && child.name.equals(name)) {
+                            child.addHost(host);
 
-                        continue outer;
+                            if (child.lastSeen < lastSeen)
+                                child.lastSeen = lastSeen;
+
+                            continue outer;
+                        }
                     }
-                }
 
-                Tracker child = new Tracker(name, category, lastSeen);
-                child.addHost(host);
-                categoryCompany.getChildren().add(child);
-            } while (cursor.moveToNext());
+                    Tracker child = new Tracker(name, category, lastSeen);
+                    child.addHost(host);
+                    categoryCompany.getChildren().add(child);
+                } while (cursor.moveToNext());
+            }
         }
-        cursor.close();
 
         // map to list
         List<TrackerCategory> trackerCategoryList = new ArrayList<>(categoryToTracker.values());
@@ -298,130 +381,150 @@ public class TrackerList {
     }
 
     /**
-     * Loads X-Ray tracker list
+     * Load tracker companies, their domains and tracker IPs from the precompiled database
+     *
      * @param c Context
+     * @param domainBasedBlocking Whether to treat each domain as a tracker of its own
+     * @param hostnameToTracker Map to add tracker domains to
+     * @param trackingIps Set to add tracker IPs to
+     * @return Version of the tracker database, or 0 if it could not be loaded
      */
-    private void loadXrayTrackers(Context c) {
-        // Keep track of parent companies
-        Map<String, Tracker> rootParents = new HashMap<>();
-
-        try (InputStream is = c.getAssets().open("xray-blacklist.json")) {
-            // Read JSON
-            int size = is.available();
-            byte[] buffer = new byte[size];
-            if (is.read(buffer) <= 0)
-                throw new IOException("No bytes read.");
-
-            String json = new String(buffer, StandardCharsets.UTF_8);
-
-            // Each JSON array entry contains tracker company with domains
-            JSONArray jsonCompanies = new JSONArray(json);
-            for (int i = 0; i < jsonCompanies.length(); i++) {
-                JSONObject jsonCompany = jsonCompanies.getJSONObject(i);
-
-                Tracker tracker;
-                String name = jsonCompany.getString("owner_name");
-                boolean necessary = jsonCompany.has("necessary")
-                        && jsonCompany.getBoolean("necessary");
-
-                // Necessary tracker are identified at lowest company level
-                if (!jsonCompany.isNull("root_parent")
-                        && !necessary)
-                    name = jsonCompany.getString("root_parent");
-
-                // Check if we've seen a tracker from the same root company
-                tracker = rootParents.get(name);
-                if (tracker == null) {
-                    String category = necessary ? "Content" : UNCATEGORISED;
-                    tracker = new Tracker(name, category);
-                    tracker.country = jsonCompany.getString("country");
-                    rootParents.put(name, tracker);
-                }
-
-                // Add domains to tracker map
-                JSONArray domains = jsonCompany.getJSONArray("doms");
-                for (int j = 0; j < domains.length(); j++) {
-                    String dom = domains.getString(j);
+    private long loadTrackerDatabase(Context c, boolean domainBasedBlocking,
+                                     Map<String, Tracker> hostnameToTracker, Set<String> trackingIps) {
+        try {
+            TrackerDatabase db = TrackerDatabase.getInstance(c);
 
-                    if (ignoreDomains.contains(dom))
-                        continue;
+            Tracker[] trackers = new Tracker[db.getTrackerCount()];
+            for (int i = 0; i < trackers.length; i++) {
+                trackers[i] = new Tracker(db.getTrackerName(i), db.getTrackerCategory(i));
+                trackers[i].country = db.getTrackerCountry(i);
 
-                    addTrackerDomain(tracker, dom);
-                }
+                // Look up ids ahead, so that blocking decisions only test bits
+                trackers[i].getCategoryId();
+                trackers[i].getBlockingKeyId();
             }
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Loading X-Ray list failed.. ", e);
-        }
-    }
 
-    /**
-     * Load Disconnect.me tracker list
-     * @param c Context
-     */
-    private void loadDisconnectTrackers(Context c) {
-        /* Read domain list:
-         *
-         * File is a reversed string, because some anti-virus scanners found the list suspicious
-         * More here: https://github.com/TrackerControl/tracker-control-android/issues/30
-         */
-        try (InputStream is = c.getAssets().open("disconnect-blacklist.reversed.json")) {
-            int size = is.available();
-            byte[] buffer = new byte[size];
-            if (is.read(buffer) <= 0)
-                throw new IOException("No bytes read.");
-
-            String reversedJson = new String(buffer, StandardCharsets.UTF_8);
-            String json = new StringBuilder(reversedJson).reverse().toString();
-
-            // Parse Disconnect.me list
-            JSONObject disconnect = new JSONObject(json);
-            JSONObject categories = (JSONObject) disconnect.get("categories");
-            for (Iterator<String> it = categories.keys(); it.hasNext(); ) {
-                String categoryName = it.next();
-                JSONArray category = (JSONArray) categories.get(categoryName);
-                for (int i = 0; i < category.length(); i++) {
-                    // Found tracker, now add to list
-                    JSONObject jsonTracker = category.getJSONObject(i);
-                    String trackerName = jsonTracker.keys().next();
-                    Tracker tracker = new Tracker(trackerName, categoryName);
-
-                    // Parse tracker domains
-                    JSONObject trackerHomeUrls = (JSONObject) jsonTracker.get(trackerName);
-                    for (Iterator<String> iter = trackerHomeUrls.keys(); iter.hasNext(); ) {
-                        String trackerHomeUrl = iter.next();
-
-                        // Skip non-domains fields
-                        if (!(trackerHomeUrls.get(trackerHomeUrl) instanceof JSONArray))
-                            continue;
-
-                        JSONArray urls = (JSONArray) trackerHomeUrls.get(trackerHomeUrl);
-                        for (int j = 0; j < urls.length(); j++) {
-                            String dom = urls.getString(j);
-
-                            if (ignoreDomains.contains(dom))
-                                continue;
-
-                            addTrackerDomain(tracker, dom);
-                        }
-                    }
-                }
-            }
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Loading Disconnect.me list failed.. ", e);
+            // X-Ray and Disconnect.me domains, merged at build time
+            for (int i = 0; i < db.getDomainCount(); i++)
+                addTrackerDomain(hostnameToTracker, trackers[db.getDomainTracker(i)], db.getDomain(i), domainBasedBlocking);
+
+            for (int i = 0; i < db.getIpCount(); i++)
+                trackingIps.add(db.getIp(i));
+
+            return db.getVersion();
+        } catch (IOException e) {
+            Log.e(TAG, "Loading tracker database failed.. ", e);
+            return 0;
         }
     }
 
     /**
      * Internal method to add tracker to the tracker database that is used at runtime
+     * @param hostnameToTracker Tracker database
      * @param tracker Tracker to be added
      * @param dom Domain to be added
+     * @param domainBasedBlocking Whether to treat each domain as a tracker of its own
      */
-    private void addTrackerDomain(Tracker tracker, String dom) {
+    private void addTrackerDomain(Map<String, Tracker> hostnameToTracker, Tracker tracker, String dom,
+                                  boolean domainBasedBlocking) {
         if (domainBasedBlocking) {
             Tracker t = new Tracker(dom + " (" + tracker.getName() + ")", tracker.category);
             t.country = tracker.country;
+            t.getBlockingKeyId();
             hostnameToTracker.put(dom, t);
         } else
             hostnameToTracker.put(dom, tracker);
     }
+
+    /**
+     * Immutable state used by {@link #findTracker(String)}, replaced as a whole on reload
+     */
+    private static final class Snapshot {
+        final DomainTrie index;
+        final Set<String> trackingIps;
+        final boolean domainBasedBlocking;
+        final long version;
+
+        Snapshot(DomainTrie index, Set<String> trackingIps, boolean domainBasedBlocking, long version) {
+            this.index = index;
+            this.trackingIps = trackingIps;
+            this.domainBasedBlocking = domainBasedBlocking;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Reads the tracker classification stored with access records, see {@link #getListVersion()}
+     * <p>
+     * Records classified with other tracker lists are classified again, and stored when closed.
+     */
+    public static final class Classifier implements Closeable {
+        private static final Set<String> COLUMNS = new HashSet<>(Arrays.asList("tracker", "category", "list"));
+
+        private final DatabaseHelper databaseHelper;
+        private final Cursor cursor;
+        private final int version;
+        private final int colDAddr;
+        private final int colTracker;
+        private final int colCategory;
+        private final int colList;
+        private final Map<String, Tracker> stored = new HashMap<>();
+        private final Map<String, Tracker> reclassified = new HashMap<>();
+
+        private Classifier(DatabaseHelper databaseHelper, Cursor cursor) {
+            this.databaseHelper = databaseHelper;
+            this.cursor = cursor;
+            this.version = getListVersion();
+            this.colDAddr = cursor.getColumnIndexOrThrow("daddr");
+            this.colTracker = cursor.getColumnIndexOrThrow("tracker");
+            this.colCategory = cursor.getColumnIndexOrThrow("category");
+            this.colList = cursor.getColumnIndexOrThrow("list");
+        }
+
+        /**
+         * Get tracker of the current record
+         *
+         * @return Tracker, or null if the destination is not a tracker
+         */
+        public Tracker getTracker() {
+            if (cursor.isNull(colList) || cursor.getInt(colList) != version) {
+                String daddr = cursor.getString(colDAddr);
+                if (reclassified.containsKey(daddr))
+                    return reclassified.get(daddr);
+
+                Tracker tracker = findTracker(daddr);
+                reclassified.put(daddr, tracker);
+                return tracker;
+            }
+
+            if (cursor.isNull(colTracker))
+                return null;
+
+            String name = cursor.getString(colTracker);
+            String category = cursor.getString(colCategory);
+            String key = name + "/" + category;
+            Tracker tracker = stored.get(key);
+            if (tracker == null) {
+                tracker = new Tracker(name, category);
+                stored.put(key, tracker);
+            }
+            return tracker;
+        }
+
+        /**
+         * Check whether a column holds classification, rather than access data
+         *
+         * @param column Column name
+         * @return Whether the column holds classification
+         */
+        public static boolean isClassification(String column) {
+            return COLUMNS.contains(column);
+        }
+
+        @Override
+        public void close() {
+            if (!reclassified.isEmpty())
+                databaseHelper.updateTrackers(reclassified, version);
+        }
+    }
 }
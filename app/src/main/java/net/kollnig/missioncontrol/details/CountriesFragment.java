@@ -17,8 +17,6 @@
 
 package net.kollnig.missioncontrol.details;
 
-import static net.kollnig.missioncontrol.data.TrackerList.findTracker;
-
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Picture;
@@ -39,17 +37,12 @@ import androidx.fragment.app.Fragment;
 import com.caverock.androidsvg.RenderOptions;
 import com.caverock.androidsvg.SVG;
 import com.caverock.androidsvg.SVGParseException;
-import com.maxmind.db.CHMCache;
-import com.maxmind.geoip2.DatabaseReader;
-import com.maxmind.geoip2.exception.GeoIp2Exception;
-import com.maxmind.geoip2.model.CountryResponse;
-import com.maxmind.geoip2.record.Country;
 
 import net.kollnig.missioncontrol.R;
+import net.kollnig.missioncontrol.data.GeoIp;
+import net.kollnig.missioncontrol.data.TrackerList;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
 import java.util.Map;
 
 import eu.faircode.netguard.DatabaseHelper;
@@ -95,21 +88,16 @@ public class CountriesFragment extends Fragment {
             return countryToCount;
 
         DatabaseHelper dh = DatabaseHelper.getInstance(getContext());
-        try (Cursor cursor = dh.getHosts(uid)) {
-            InputStream database = context.getAssets().open("GeoLite2-Country.mmdb");
-            DatabaseReader reader = new DatabaseReader.Builder(database).withCache(new CHMCache()).build();
-
+        GeoIp geoIp = GeoIp.getInstance(context);
+        try (Cursor cursor = dh.getHosts(uid);
+             TrackerList.Classifier classifier = TrackerList.getInstance(context).getClassifier(cursor)) {
             if (cursor.moveToFirst()) {
                 do {
                     String host = cursor.getString(cursor.getColumnIndexOrThrow("daddr"));
-                    if (findTracker(host) == null)
+                    if (classifier.getTracker() == null)
                         continue;
 
-                    InetAddress ipAddress = InetAddress.getByName(host);
-                    CountryResponse response = reader.country(ipAddress);
-
-                    Country country = response.getCountry();
-                    String code = country.getIsoCode();
+                    String code = geoIp.getCountryOfHost(host);
                     if (code == null)
                         continue;
 
@@ -121,7 +109,7 @@ public class CountriesFragment extends Fragment {
                     }
                 } while (cursor.moveToNext());
             }
-        } catch (IOException | GeoIp2Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return countryToCount;
@@ -83,7 +83,7 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
             s->icmp.time = time(NULL);
 
             uint16_t blen = (uint16_t) (s->icmp.version == 4 ? ICMP4_MAXMSG : ICMP6_MAXMSG);
-            uint8_t *buffer = ng_malloc(blen, "icmp socket");
+            uint8_t *buffer = args->rx;
             ssize_t bytes = recv(s->socket, buffer, blen, 0);
             if (bytes < 0) {
                 // Socket error
@@ -136,7 +136,6 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
                 if (write_icmp(args, &s->icmp, buffer, (size_t) bytes) < 0)
                     s->icmp.stop = 1;
             }
-            ng_free(buffer, __FILE__, __LINE__);
         }
     }
 }
@@ -170,22 +169,18 @@ jboolean handle_icmp(const struct arguments *args,
     }
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
-             !cur->icmp.stop && cur->icmp.version == version &&
-             (version == 4 ? cur->icmp.saddr.ip4 == ip4->saddr &&
-                             cur->icmp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->shard, IPPROTO_ICMP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            0, 0);
 
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "ICMP new session from %s to %s", source, dest);
 
         // Register session
-        struct ng_session *s = ng_malloc(sizeof(struct ng_session), "icmp session");
+        struct ng_session *s = pool_alloc(&args->shard->session_pool);
         s->protocol = (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6);
 
         s->icmp.time = time(NULL);
@@ -203,12 +198,11 @@ jboolean handle_icmp(const struct arguments *args,
         s->icmp.id = icmp->icmp_id; // store original ID
 
         s->icmp.stop = 0;
-        s->next = NULL;
 
         // Open UDP socket
         s->socket = open_icmp_socket(args, &s->icmp);
         if (s->socket < 0) {
-            ng_free(s, __FILE__, __LINE__);
+            pool_free(&args->shard->session_pool, s);
             return 0;
         }
 
@@ -221,11 +215,11 @@ jboolean handle_icmp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add icmp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->shard, s);
 
         cur = s;
-    }
+    } else
+        touch_session(args->shard, cur);
 
     // Modify ID
     // http://lwn.net/Articles/443051/
@@ -303,10 +297,17 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
+    // Packets are built in the buffer of the thread
+    if ((cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+        datalen > IO_BUFFER) {
+        log_android(ANDROID_LOG_ERROR, "ICMP write data %d too large", datalen);
+        return -1;
+    }
+
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + datalen;
-        buffer = ng_malloc(len, "icmp write4");
+        buffer = args->tx;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         if (datalen)
             memcpy(buffer + sizeof(struct iphdr), data, datalen);
@@ -325,7 +326,7 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
         ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
     } else {
         len = sizeof(struct ip6_hdr) + datalen;
-        buffer = ng_malloc(len, "icmp write6");
+        buffer = args->tx;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         if (datalen)
             memcpy(buffer + sizeof(struct ip6_hdr), data, datalen);
@@ -354,7 +355,7 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                 args->tun, dest, source, datalen,
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len);
 
     // Write PCAP record
     if (res >= 0) {
@@ -363,8 +364,6 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
     } else
         log_android(ANDROID_LOG_WARN, "ICMP write error %d: %s", errno, strerror(errno));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
@@ -54,14 +54,16 @@ int check_tun(const struct arguments *args,
 
     // Check tun read
     if (ev->events & EPOLLIN) {
-        uint8_t *buffer = ng_malloc(get_mtu(), "tun read");
-        ssize_t length = read(args->tun, buffer, get_mtu());
+        uint8_t *buffer = args->rx;
+        ssize_t length = read(args->in, buffer, get_mtu());
         if (length < 0) {
-            ng_free(buffer, __FILE__, __LINE__);
+            // No packets left
+            if (errno == EAGAIN || errno == EWOULDBLOCK)
+                return 0;
 
             log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
                         args->tun, errno, strerror(errno));
-            if (errno == EINTR || errno == EAGAIN)
+            if (errno == EINTR)
                 // Retry later
                 return 0;
             else {
@@ -81,12 +83,9 @@ int check_tun(const struct arguments *args,
 
             // Handle IP from tun
             handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
-
-            ng_free(buffer, __FILE__, __LINE__);
+            return 1;
         } else {
             // tun eof
-            ng_free(buffer, __FILE__, __LINE__);
-
             log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
             report_exit(args, "tun %d empty read", args->tun);
             return -1;
@@ -96,6 +95,23 @@ int check_tun(const struct arguments *args,
     return 0;
 }
 
+ssize_t write_tun(const struct arguments *args, const uint8_t *buffer, size_t len) {
+    ssize_t res = write(args->tun, buffer, len);
+
+    // The tun file is non blocking, wait like a blocking write would
+    while (res < 0 && (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR)) {
+        struct pollfd p;
+        p.fd = args->tun;
+        p.events = POLLOUT;
+        p.revents = 0;
+        if (poll(&p, 1, TUN_WRITE_TIMEOUT) <= 0)
+            break;
+        res = write(args->tun, buffer, len);
+    }
+
+    return res;
+}
+
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
 // http://www.iana.org/assignments/protocol-numbers/protocol-numbers.xhtml
 int is_lower_layer(int protocol) {
@@ -296,7 +312,7 @@ void handle_ip(const struct arguments *args,
             if (args->ctx->sdk <= 28) // Android 9 Pie
                 uid = get_uid(version, protocol, saddr, sport, daddr, dport);
             else
-                uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+                uid = get_uid_q(args, version, protocol, saddr, sport, daddr, dport);
     }
 
     log_android(ANDROID_LOG_DEBUG,
@@ -329,16 +345,11 @@ void handle_ip(const struct arguments *args,
             const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
             // Search existing TCP session
-            struct ng_session *cur = args->ctx->ng_session;
-            while (cur != NULL &&
-                   !(cur->protocol == IPPROTO_TCP &&
-                     cur->tcp.version == version &&
-                     cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-                     (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                                     cur->tcp.daddr.ip4 == ip4->daddr
-                                   : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                                     memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-                cur = cur->next;
+            struct ng_session *cur = find_session(
+                    args->shard, IPPROTO_TCP, version,
+                    version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+                    version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+                    tcphdr->source, tcphdr->dest);
 
             // Try to parse Server Name Extension
             if (cur != NULL && cur->tcp.checkedHostname == 0) {                
@@ -354,16 +365,15 @@ void handle_ip(const struct arguments *args,
             if (args->ctx->sdk <= 28) // Android 9 Pie.
                 uid = get_uid(version, protocol, saddr, sport, daddr, dport);
             else
-                uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+                uid = get_uid_q(args, version, protocol, saddr, sport, daddr, dport);
 
             allowed = 1;
         }
 
         // No existing TCP session, or unhandled TLS session?
         if (cur == NULL || cur->tcp.checkedHostname == 0) {
-            jobject objPacket = create_packet(
-                    args, version, protocol, flags, source, sport, dest, dport, packetdata, uid, 0);
-            redirect = is_address_allowed(args, objPacket);
+            redirect = decide_address(
+                    args, version, protocol, flags, source, sport, dest, dport, daddr, packetdata, uid);
             allowed = (redirect != NULL);
             if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
                 redirect = NULL;
@@ -390,11 +400,12 @@ void handle_ip(const struct arguments *args,
     }
 }
 
+// The uid cache is shared by the event loops
+static pthread_mutex_t uid_lock = PTHREAD_MUTEX_INITIALIZER;
+
 jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
              const void *daddr, const uint16_t dport) {
-    jint uid = -1;
-
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
     inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
@@ -404,30 +415,52 @@ jint get_uid(const int version, const int protocol,
     gettimeofday(&time, NULL);
     long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
 
-    // Check IPv6 table first
+    // IPv4 sockets opened as IPv6 are in the IPv6 table
+    int8_t saddr128[16];
+    int8_t daddr128[16];
     if (version == 4) {
-        int8_t saddr128[16];
         memset(saddr128, 0, 10);
         saddr128[10] = (uint8_t) 0xFF;
         saddr128[11] = (uint8_t) 0xFF;
         memcpy(saddr128 + 12, saddr, 4);
 
-        int8_t daddr128[16];
         memset(daddr128, 0, 10);
         daddr128[10] = (uint8_t) 0xFF;
         daddr128[11] = (uint8_t) 0xFF;
         memcpy(daddr128 + 12, daddr, 4);
-
-        uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
-                    version, protocol, source, sport, dest, dport, uid);
     }
 
-    if (uid == -1) {
-        uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
-                    version, protocol, source, sport, dest, dport, uid);
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // Check the cached tables first, and read them only if that is not conclusive
+    jint uid = UID_UNCACHED;
+    for (int refresh = 0; refresh < 2 && uid == UID_UNCACHED; refresh++) {
+        // Check IPv6 table first
+        jint mapped = -1;
+        if (version == 4) {
+            mapped = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport,
+                                 source, dest, now, refresh);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
+                        version, protocol, source, sport, dest, dport, mapped);
+        }
+
+        if (mapped >= 0)
+            uid = mapped;
+        else {
+            uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport,
+                              source, dest, now, refresh);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
+                        version, protocol, source, sport, dest, dport, uid);
+            if (uid < 0 && mapped == UID_UNCACHED)
+                uid = UID_UNCACHED;
+        }
     }
+    if (uid == UID_UNCACHED)
+        uid = -1;
+
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
     if (uid == -1)
         log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
@@ -439,39 +472,95 @@ jint get_uid(const int version, const int protocol,
     return uid;
 }
 
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
+// Sockets of the proc tables, by protocol, version and source port
+static struct uid_cache_entry *uid_cache[UID_BUCKETS];
 
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now) {
-    // NETLINK is not available on Android due to SELinux policies :-(
-    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
-    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+static struct uid_cache_entry **get_uid_bucket(int version, int protocol, uint16_t sport) {
+    uint32_t hash = sport;
+    hash = hash * 31 + (uint32_t) protocol;
+    hash = hash * 31 + (uint32_t) version;
+    return &uid_cache[hash & (UID_BUCKETS - 1)];
+}
 
+static struct uid_cache_entry *find_uid_entry(int version, int protocol,
+                                              const void *saddr, uint16_t sport,
+                                              const void *daddr, uint16_t dport,
+                                              int exact, long now) {
     static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    size_t len = (size_t) (version == 4 ? 4 : 16);
+
+    // Listening and unconnected sockets have no destination, known sockets go first
+    struct uid_cache_entry *unknown = NULL;
+    struct uid_cache_entry *e = *get_uid_bucket(version, protocol, sport);
+    for (; e != NULL; e = e->next)
+        if (now - e->time <= UID_MAX_AGE &&
+            e->version == version &&
+            e->protocol == protocol &&
+            e->sport == sport &&
+            (e->dport == dport || (!exact && e->dport == 0)) &&
+            (memcmp(e->saddr, saddr, len) == 0 ||
+             (!exact && memcmp(e->saddr, zero, len) == 0)) &&
+            (memcmp(e->daddr, daddr, len) == 0 ||
+             (!exact && memcmp(e->daddr, zero, len) == 0))) {
+            if (e->uid != -1 || exact)
+                return e;
+            if (unknown == NULL)
+                unknown = e;
+        }
+    return unknown;
+}
 
-    int ws = (version == 4 ? 1 : 4);
+static void put_uid_entry(int version, int protocol,
+                          const void *saddr, uint16_t sport,
+                          const void *daddr, uint16_t dport,
+                          jint uid, long now) {
+    struct uid_cache_entry *e =
+            find_uid_entry(version, protocol, saddr, sport, daddr, dport, 1, now);
+    if (e == NULL) {
+        struct uid_cache_entry **bucket = get_uid_bucket(version, protocol, sport);
+        e = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache");
+        memset(e, 0, sizeof(struct uid_cache_entry));
+        e->version = (uint8_t) version;
+        e->protocol = (uint8_t) protocol;
+        memcpy(e->saddr, saddr, (size_t) (version == 4 ? 4 : 16));
+        e->sport = sport;
+        memcpy(e->daddr, daddr, (size_t) (version == 4 ? 4 : 16));
+        e->dport = dport;
+        e->next = *bucket;
+        *bucket = e;
+    }
+    e->uid = uid;
+    e->time = now;
+}
 
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, (size_t) (ws * 4)) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, (size_t) (ws * 4)) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            return uid_cache[i].uid;
+static void expire_uid_entries(long now) {
+    for (int i = 0; i < UID_BUCKETS; i++) {
+        struct uid_cache_entry **e = &uid_cache[i];
+        while (*e != NULL)
+            if (now - (*e)->time > UID_MAX_AGE) {
+                struct uid_cache_entry *p = *e;
+                *e = p->next;
+                ng_free(p, __FILE__, __LINE__);
+            } else
+                e = &(*e)->next;
+    }
+}
+
+void clear_uid_cache() {
+    for (int i = 0; i < UID_BUCKETS; i++)
+        while (uid_cache[i] != NULL) {
+            struct uid_cache_entry *p = uid_cache[i];
+            uid_cache[i] = p->next;
+            ng_free(p, __FILE__, __LINE__);
         }
+}
+
+static jint read_uid_table(const int version, const int protocol, long now) {
+    // NETLINK is not available on Android due to SELinux policies :-(
+    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
+    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+
+    int ws = (version == 4 ? 1 : 4);
 
     // Get proc file name
     char *fn = NULL;
@@ -493,7 +582,7 @@ jint get_uid_sub(const int version, const int protocol,
         return -2;
     }
 
-    jint uid = -1;
+    expire_uid_entries(now);
 
     char line[250];
     int fields;
@@ -508,10 +597,10 @@ jint get_uid_sub(const int version, const int protocol,
 
     jint _uid;
 
-    // Scan proc file
+    // Scan proc file, all sockets are cached
     int l = 0;
+    int count = 0;
     *line = 0;
-    int c = 0;
     const char *fmt = (version == 4
                        ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
                        : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
@@ -530,39 +619,14 @@ jint get_uid_sub(const int version, const int protocol,
             for (int w = 0; w < ws; w++)
                 ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
 
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache init");
-                else
-                    uid_cache = ng_realloc(uid_cache,
-                                           sizeof(struct uid_cache_entry) *
-                                           (uid_cache_size + 1), "uid_cache extend");
-                c = uid_cache_size;
-                uid_cache_size++;
-            }
-
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, _daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
+            put_uid_entry(version, protocol,
+                          _saddr, (uint16_t) _sport, _daddr, (uint16_t) _dport, _uid, now);
+            count++;
         } else {
             log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
+            if (fclose(fd))
+                log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s",
+                            fn, errno, strerror(errno));
             return -2;
         }
     }
@@ -570,5 +634,37 @@ jint get_uid_sub(const int version, const int protocol,
     if (fclose(fd))
         log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
 
-    return uid;
+    log_android(ANDROID_LOG_DEBUG, "uid table %s sockets %d", fn, count);
+    return 0;
+}
+
+jint get_uid_sub(const int version, const int protocol,
+                 const void *saddr, const uint16_t sport,
+                 const void *daddr, const uint16_t dport,
+                 const char *source, const char *dest,
+                 long now, int refresh) {
+    // Check cache
+    struct uid_cache_entry *e =
+            find_uid_entry(version, protocol, saddr, sport, daddr, dport, 0, now);
+    if (e != NULL) {
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                    version, protocol, source, sport, dest, dport, e->uid);
+        return e->uid;
+    }
+
+    if (!refresh)
+        return UID_UNCACHED;
+
+    // Read all sockets of the table at once
+    jint rc = read_uid_table(version, protocol, now);
+    if (rc < 0)
+        return rc;
+
+    e = find_uid_entry(version, protocol, saddr, sport, daddr, dport, 0, now);
+    if (e != NULL)
+        return e->uid;
+
+    // Remember unknown sockets, so that the table is not read again for each packet
+    put_uid_entry(version, protocol, saddr, sport, daddr, dport, -1, now);
+    return -1;
 }
@@ -36,13 +36,9 @@ extern FILE *pcap_file;
 extern size_t pcap_record_size;
 extern long pcap_file_size;
 
-extern int uid_cache_size;
-extern struct uid_cache_entry *uid_cache;
-
 // JNI
 
 jclass clsPacket;
-jclass clsAllowed;
 jclass clsRR;
 jclass clsUsage;
 
@@ -59,10 +55,6 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     clsPacket = jniGlobalRef(env, jniFindClass(env, packet));
     ng_add_alloc(clsPacket, "clsPacket");
 
-    const char *allowed = "eu/faircode/netguard/Allowed";
-    clsAllowed = jniGlobalRef(env, jniFindClass(env, allowed));
-    ng_add_alloc(clsAllowed, "clsAllowed");
-
     const char *rr = "eu/faircode/netguard/ResourceRecord";
     clsRR = jniGlobalRef(env, jniFindClass(env, rr));
     ng_add_alloc(clsRR, "clsRR");
@@ -95,11 +87,9 @@ void JNI_OnUnload(JavaVM *vm, void *reserved) {
         log_android(ANDROID_LOG_INFO, "JNI load GetEnv failed");
     else {
         (*env)->DeleteGlobalRef(env, clsPacket);
-        (*env)->DeleteGlobalRef(env, clsAllowed);
         (*env)->DeleteGlobalRef(env, clsRR);
         (*env)->DeleteGlobalRef(env, clsUsage);
         ng_delete_alloc(clsPacket, __FILE__, __LINE__);
-        ng_delete_alloc(clsAllowed, __FILE__, __LINE__);
         ng_delete_alloc(clsRR, __FILE__, __LINE__);
         ng_delete_alloc(clsUsage, __FILE__, __LINE__);
     }
@@ -124,6 +114,13 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
 
+    for (int i = 0; i < WORKER_MAX; i++) {
+        if (pthread_mutex_init(&ctx->shard[i].lock, NULL))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+        pool_init(&ctx->shard[i].session_pool, sizeof(struct ng_session), "session");
+        pool_init(&ctx->shard[i].segment_pool, sizeof(struct segment), "segment");
+    }
+
     // Create signal pipe
     if (pipe(ctx->pipefds))
         log_android(ANDROID_LOG_ERROR, "Create pipe error %d: %s", errno, strerror(errno));
@@ -153,15 +150,28 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
 
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
-        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode) {
+        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode,
+        jint workers) {
     struct context *ctx = (struct context *) context;
 
-    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d", tun, fwd53, loglevel);
+    if (workers < 1)
+        workers = 1;
+    else if (workers > WORKER_MAX)
+        workers = WORKER_MAX;
+
+    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d workers %d",
+                tun, fwd53, loglevel, workers);
 
-    // Set blocking
+    // Sessions belong to the event loop of their shard
+    if (workers != ctx->shards) {
+        clear(ctx);
+        ctx->shards = workers;
+    }
+
+    // Set non blocking, to read packets until none are left (writes wait, see write_tun)
     int flags = fcntl(tun, F_GETFL, 0);
-    if (flags < 0 || fcntl(tun, F_SETFL, flags & ~O_NONBLOCK) < 0)
-        log_android(ANDROID_LOG_ERROR, "fcntl tun ~O_NONBLOCK error %d: %s",
+    if (flags < 0 || fcntl(tun, F_SETFL, flags | O_NONBLOCK) < 0)
+        log_android(ANDROID_LOG_ERROR, "fcntl tun O_NONBLOCK error %d: %s",
                     errno, strerror(errno));
 
     // Get arguments
@@ -172,7 +182,14 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
     args->fwd53 = fwd53;
     args->rcode = rcode;
     args->ctx = ctx;
-    handle_events(args);
+    args->shard = &ctx->shard[0];
+    args->in = tun;
+    if (workers == 1)
+        handle_events(args);
+    else {
+        handle_workers(args, workers);
+        ng_free(args, __FILE__, __LINE__);
+    }
 }
 
 JNIEXPORT void JNICALL
@@ -203,29 +220,24 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
 
-    if (pthread_mutex_lock(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
-
     jintArray jarray = (*env)->NewIntArray(env, 5);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
-    struct ng_session *s = ctx->ng_session;
-    while (s != NULL) {
-        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop)
-                jcount[0]++;
-        } else if (s->protocol == IPPROTO_UDP) {
-            if (s->udp.state == UDP_ACTIVE)
-                jcount[1]++;
-        } else if (s->protocol == IPPROTO_TCP) {
-            if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                jcount[2]++;
-        }
-        s = s->next;
-    }
+    jcount[0] = 0;
+    jcount[1] = 0;
+    jcount[2] = 0;
+    for (int i = 0; i < WORKER_MAX; i++) {
+        struct shard *shard = &ctx->shard[i];
+        if (pthread_mutex_lock(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    if (pthread_mutex_unlock(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        jcount[0] += shard->sessions.icmp;
+        jcount[1] += shard->sessions.udp;
+        jcount[2] += shard->sessions.tcp;
+
+        if (pthread_mutex_unlock(&shard->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    }
 
     jcount[3] = 0;
     DIR *d = opendir("/proc/self/fd");
@@ -338,6 +350,12 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     log_android(ANDROID_LOG_INFO, "Done");
 
     clear(ctx);
+    for (int i = 0; i < WORKER_MAX; i++) {
+        pool_clear(&ctx->shard[i].session_pool);
+        pool_clear(&ctx->shard[i].segment_pool);
+        if (pthread_mutex_destroy(&ctx->shard[i].lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    }
 
     if (pthread_mutex_destroy(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
@@ -346,14 +364,23 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
         if (close(ctx->pipefds[i]))
             log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
 
-    if (uid_cache != NULL)
-        ng_free(uid_cache, __FILE__, __LINE__);
-    uid_cache_size = 0;
-    uid_cache = NULL;
+    clear_uid_cache();
 
     ng_free(ctx, __FILE__, __LINE__);
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1decisions(
+        JNIEnv *env, jobject instance, jlong context, jobject buffer) {
+    struct context *ctx = (struct context *) context;
+
+    // The buffer is kept alive by Java for the lifetime of the process
+    ctx->decisions = (buffer == NULL
+                      ? NULL : (struct decision_table *) (*env)->GetDirectBufferAddress(env, buffer));
+    log_android(ANDROID_LOG_WARN, "Decision table size %d",
+                ctx->decisions == NULL ? 0 : ctx->decisions->size);
+}
+
 // JNI Util
 
 JNIEXPORT jstring JNICALL
@@ -629,6 +656,9 @@ void dns_resolved(const struct arguments *args,
     (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrr);
     jniCheckException(args->env);
 
+    // The address may belong to another host now
+    invalidate_decisions(args, resource);
+
     (*args->env)->DeleteLocalRef(args->env, jresource);
     (*args->env)->DeleteLocalRef(args->env, janame);
     (*args->env)->DeleteLocalRef(args->env, jqname);
@@ -692,8 +722,8 @@ static jmethodID midGetUidQ = NULL;
 
 jint get_uid_q(const struct arguments *args,
                jint version, jint protocol,
-               const char *source, jint sport,
-               const char *dest, jint dport) {
+               const void *saddr, jint sport,
+               const void *daddr, jint dport) {
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -703,25 +733,29 @@ jint get_uid_q(const struct arguments *args,
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(IILjava/lang/String;ILjava/lang/String;I)I";
+    const char *signature = "(II[BI[BI)I";
     if (midGetUidQ == NULL)
         midGetUidQ = jniGetMethodID(args->env, clsService, "getUidQ", signature);
 
-    jstring jsource = (*args->env)->NewStringUTF(args->env, source);
-    jstring jdest = (*args->env)->NewStringUTF(args->env, dest);
-    ng_add_alloc(jsource, "jsource");
-    ng_add_alloc(jdest, "jdest");
+    // Addresses are passed as in the packet, so that they need not be formatted and parsed again
+    jsize len = (version == 4 ? 4 : 16);
+    jbyteArray jsaddr = (*args->env)->NewByteArray(args->env, len);
+    jbyteArray jdaddr = (*args->env)->NewByteArray(args->env, len);
+    ng_add_alloc(jsaddr, "jsaddr");
+    ng_add_alloc(jdaddr, "jdaddr");
+    (*args->env)->SetByteArrayRegion(args->env, jsaddr, 0, len, (const jbyte *) saddr);
+    (*args->env)->SetByteArrayRegion(args->env, jdaddr, 0, len, (const jbyte *) daddr);
 
     jint juid = (*args->env)->CallIntMethod(
             args->env, args->instance, midGetUidQ,
-            version, protocol, jsource, sport, jdest, dport);
+            version, protocol, jsaddr, sport, jdaddr, dport);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jdest);
-    (*args->env)->DeleteLocalRef(args->env, jsource);
+    (*args->env)->DeleteLocalRef(args->env, jdaddr);
+    (*args->env)->DeleteLocalRef(args->env, jsaddr);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jdest, __FILE__, __LINE__);
-    ng_delete_alloc(jsource, __FILE__, __LINE__);
+    ng_delete_alloc(jdaddr, __FILE__, __LINE__);
+    ng_delete_alloc(jsaddr, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
 #ifdef PROFILE_JNI
@@ -736,11 +770,11 @@ jint get_uid_q(const struct arguments *args,
 }
 
 static jmethodID midIsAddressAllowed = NULL;
-jfieldID fidRaddr = NULL;
-jfieldID fidRport = NULL;
-struct allowed allowed;
+static jfieldID fidRaddr = NULL;
+static jfieldID fidRport = NULL;
+static __thread struct allowed allowed; // per event loop
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
+struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket, jint *verdict) {
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -750,46 +784,43 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Leu/faircode/netguard/Packet;)Leu/faircode/netguard/Allowed;";
+    const char *signature = "(Leu/faircode/netguard/Packet;)I";
     if (midIsAddressAllowed == NULL)
         midIsAddressAllowed = jniGetMethodID(args->env, clsService, "isAddressAllowed", signature);
 
-    jobject jallowed = (*args->env)->CallObjectMethod(
+    *verdict = (*args->env)->CallIntMethod(
             args->env, args->instance, midIsAddressAllowed, jpacket);
-    ng_add_alloc(jallowed, "jallowed");
-    jniCheckException(args->env);
+    if (jniCheckException(args->env))
+        *verdict = VERDICT_BLOCK;
 
-    if (jallowed != NULL) {
+    // The redirect is passed in the packet
+    *allowed.raddr = 0;
+    allowed.rport = 0;
+    if ((*verdict & VERDICT_MASK) == VERDICT_REDIRECT) {
         if (fidRaddr == NULL) {
-            const char *string = "Ljava/lang/String;";
-            fidRaddr = jniGetFieldID(args->env, clsAllowed, "raddr", string);
-            fidRport = jniGetFieldID(args->env, clsAllowed, "rport", "I");
+            fidRaddr = jniGetFieldID(args->env, clsPacket, "raddr", "Ljava/lang/String;");
+            fidRport = jniGetFieldID(args->env, clsPacket, "rport", "I");
         }
 
-        jstring jraddr = (*args->env)->GetObjectField(args->env, jallowed, fidRaddr);
-        ng_add_alloc(jraddr, "jraddr");
-        if (jraddr == NULL)
-            *allowed.raddr = 0;
-        else {
+        jstring jraddr = (jstring) (*args->env)->GetObjectField(args->env, jpacket, fidRaddr);
+        if (jraddr != NULL) {
+            ng_add_alloc(jraddr, "jraddr");
             const char *raddr = (*args->env)->GetStringUTFChars(args->env, jraddr, NULL);
             ng_add_alloc(raddr, "raddr");
-            strcpy(allowed.raddr, raddr);
+            strncpy(allowed.raddr, raddr, sizeof(allowed.raddr) - 1);
+            allowed.raddr[sizeof(allowed.raddr) - 1] = 0;
             (*args->env)->ReleaseStringUTFChars(args->env, jraddr, raddr);
             ng_delete_alloc(raddr, __FILE__, __LINE__);
+            (*args->env)->DeleteLocalRef(args->env, jraddr);
+            ng_delete_alloc(jraddr, __FILE__, __LINE__);
         }
-        allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
-
-        (*args->env)->DeleteLocalRef(args->env, jraddr);
-        ng_delete_alloc(jraddr, __FILE__, __LINE__);
+        allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jpacket, fidRport);
     }
 
-
     (*args->env)->DeleteLocalRef(args->env, jpacket);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    (*args->env)->DeleteLocalRef(args->env, jallowed);
     ng_delete_alloc(jpacket, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
-    ng_delete_alloc(jallowed, __FILE__, __LINE__);
 
 #ifdef PROFILE_JNI
     gettimeofday(&end, NULL);
@@ -799,7 +830,180 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
         log_android(ANDROID_LOG_WARN, "is_address_allowed %f", mselapsed);
 #endif
 
-    return (jallowed == NULL ? NULL : &allowed);
+    return ((*verdict & VERDICT_MASK) == VERDICT_BLOCK ? NULL : &allowed);
+}
+
+// Same hash as DecisionTable, of the address only, so that the entries of an address are together
+static uint32_t hash_decision(const uint8_t *addr) {
+    uint32_t hash = 0;
+    for (int i = 0; i < 16; i++)
+        hash = hash * 31 + addr[i];
+    return hash ^ (hash >> 16);
+}
+
+static void get_decision_address(jint version, const void *daddr, uint8_t *addr) {
+    memset(addr, 0, 16);
+    memcpy(addr, daddr, version == 4 ? 4 : 16);
+}
+
+int get_decision(const struct arguments *args,
+                 jint version, jint protocol, const void *daddr, jint dport, jint uid,
+                 int *log) {
+    struct decision_table *table = args->ctx->decisions;
+    if (table == NULL || table->size <= 0)
+        return -1;
+
+    uint8_t addr[16];
+    get_decision_address(version, daddr, addr);
+    uint32_t hash = hash_decision(addr);
+
+    int32_t generation = table->generation;
+    uint32_t now = (uint32_t) time(NULL);
+    for (int i = 0; i < DECISION_PROBES; i++) {
+        const struct decision *d = &table->entries[(hash + i) & (table->size - 1)];
+        if (d->generation == generation &&
+            d->uid == uid &&
+            d->version == version &&
+            d->protocol == protocol &&
+            d->dport == dport &&
+            memcmp(d->daddr, addr, sizeof(addr)) == 0) {
+            *log = d->log;
+            return ((int32_t) (d->expires - now) < 0 ? -1 : d->verdict);
+        }
+    }
+
+    return -1;
+}
+
+void put_decision(const struct arguments *args, int32_t generation,
+                  jint version, jint protocol, const void *daddr, jint dport, jint uid,
+                  jint verdict) {
+    struct decision_table *table = args->ctx->decisions;
+    if (table == NULL || table->size <= 0)
+        return;
+
+    uint8_t addr[16];
+    get_decision_address(version, daddr, addr);
+    uint32_t hash = hash_decision(addr);
+
+    // Prefer the same key, then an unused or stale entry, else replace the first
+    int32_t current = table->generation;
+    uint32_t now = (uint32_t) time(NULL);
+    struct decision *d = &table->entries[hash & (table->size - 1)];
+    for (int i = 0; i < DECISION_PROBES; i++) {
+        struct decision *e = &table->entries[(hash + i) & (table->size - 1)];
+        if (e->generation == 0 || e->generation != current ||
+            (int32_t) (e->expires - now) < 0 ||
+            (e->uid == uid &&
+             e->version == version &&
+             e->protocol == protocol &&
+             e->dport == dport &&
+             memcmp(e->daddr, addr, sizeof(addr)) == 0)) {
+            d = e;
+            break;
+        }
+    }
+
+    d->generation = generation;
+    d->uid = uid;
+    d->version = (uint8_t) version;
+    d->protocol = (uint8_t) protocol;
+    d->dport = (uint16_t) dport;
+    d->expires = now + DECISION_TTL;
+    memcpy(d->daddr, addr, sizeof(addr));
+    d->verdict = verdict & VERDICT_MASK;
+    d->log = (verdict & DECISION_LOG ? 1 : 0);
+}
+
+void invalidate_decisions(const struct arguments *args, const char *resource) {
+    struct decision_table *table = args->ctx->decisions;
+    if (table == NULL || table->size <= 0)
+        return;
+
+    // IPv4 addresses are also seen as IPv4-mapped IPv6 addresses
+    uint8_t addrs[2][16];
+    int count = 0;
+    memset(addrs, 0, sizeof(addrs));
+    if (inet_pton(AF_INET, resource, addrs[0]) == 1) {
+        addrs[1][10] = 0xff;
+        addrs[1][11] = 0xff;
+        memcpy(&addrs[1][12], addrs[0], 4);
+        count = 2;
+    } else if (inet_pton(AF_INET6, resource, addrs[0]) == 1)
+        count = 1;
+
+    if (pthread_mutex_lock(&args->ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    for (int a = 0; a < count; a++) {
+        uint32_t hash = hash_decision(addrs[a]);
+        for (int i = 0; i < DECISION_PROBES; i++) {
+            struct decision *d = &table->entries[(hash + i) & (table->size - 1)];
+            if (d->generation != 0 && memcmp(d->daddr, addrs[a], sizeof(addrs[a])) == 0)
+                d->generation = 0;
+        }
+    }
+
+    // Decisions being made may be about the address as well
+    args->ctx->invalidated++;
+
+    if (pthread_mutex_unlock(&args->ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+struct allowed *decide_address(const struct arguments *args,
+                               jint version, jint protocol, const char *flags,
+                               const char *source, jint sport,
+                               const char *dest, jint dport, const void *daddr,
+                               const char *data, jint uid) {
+    struct context *ctx = args->ctx;
+
+    // The lock is held for the table only, the event loops decide in Java concurrently
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int log = 0;
+    int verdict = get_decision(args, version, protocol, daddr, dport, uid, &log);
+    int32_t generation = (ctx->decisions == NULL ? 0 : ctx->decisions->generation);
+    uint32_t invalidated = ctx->invalidated;
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (verdict < 0) {
+        jint jverdict;
+        jobject objPacket = create_packet(
+                args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
+        struct allowed *result = is_address_allowed(args, objPacket, &jverdict);
+
+        // Decided with the generation read before, so that decisions forgotten meanwhile are not
+        // remembered again, and not if decisions about any address were forgotten meanwhile
+        if (jverdict & DECISION_KEEP) {
+            if (pthread_mutex_lock(&ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+            if (ctx->invalidated == invalidated)
+                put_decision(args, generation, version, protocol, daddr, dport, uid, jverdict);
+
+            if (pthread_mutex_unlock(&ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        }
+
+        return result;
+    }
+
+    // Log like isAddressAllowed would have, server names could be of trackers
+    if ((log || (data != NULL && *data)) && (protocol != IPPROTO_TCP || *flags))
+        log_packet(args, create_packet(
+                args, version, protocol, flags, source, sport, dest, dport, data, uid,
+                (jboolean) (verdict != VERDICT_BLOCK)));
+
+    if (verdict == VERDICT_BLOCK)
+        return NULL;
+
+    *allowed.raddr = 0;
+    allowed.rport = 0;
+    return &allowed;
 }
 
 jmethodID midInitPacket = NULL;
@@ -1087,6 +1291,52 @@ void ng_free(void *__ptr, const char *file, int line) {
     free(__ptr);
 }
 
+// Objects are aligned for any type, free objects are linked through their first bytes
+#define POOL_ALIGN 16
+
+void pool_init(struct pool *pool, size_t size, const char *tag) {
+    pool->size = (size + POOL_ALIGN - 1) / POOL_ALIGN * POOL_ALIGN;
+    pool->tag = tag;
+    pool->free = NULL;
+    pool->slabs = NULL;
+}
+
+void *pool_alloc(struct pool *pool) {
+    if (pool->free == NULL) {
+        uint8_t *slab = ng_malloc(POOL_ALIGN + POOL_SLAB * pool->size, pool->tag);
+        if (slab == NULL)
+            return NULL;
+        *(void **) slab = pool->slabs;
+        pool->slabs = slab;
+
+        for (int i = POOL_SLAB - 1; i >= 0; i--) {
+            void *obj = slab + POOL_ALIGN + i * pool->size;
+            *(void **) obj = pool->free;
+            pool->free = obj;
+        }
+    }
+
+    void *obj = pool->free;
+    pool->free = *(void **) obj;
+    return obj;
+}
+
+void pool_free(struct pool *pool, void *ptr) {
+    *(void **) ptr = pool->free;
+    pool->free = ptr;
+}
+
+void pool_clear(struct pool *pool) {
+    void *slab = pool->slabs;
+    while (slab != NULL) {
+        void *next = *(void **) slab;
+        ng_free(slab, __FILE__, __LINE__);
+        slab = next;
+    }
+    pool->free = NULL;
+    pool->slabs = NULL;
+}
+
 void ng_dump() {
     int r = 0;
     for (int c = 0; c < allocs; c++)
@@ -1,5 +1,6 @@
 #include <jni.h>
 #include <stdio.h>
+#include <stddef.h>
 #include <stdlib.h>
 #include <string.h>
 #include <ctype.h>
@@ -42,7 +43,14 @@
 #define EPOLL_EVENTS 20
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
-#define TUN_YIELD 10 // packets
+#define TUN_BATCH 64 // packets
+#define TUN_WRITE_TIMEOUT 1000 // milliseconds
+
+#define IO_BUFFER (IP_MAXPACKET + 1) // bytes, largest IP packet
+#define POOL_SLAB 32 // objects
+
+#define WORKER_MAX 8 // event loops
+#define WORKER_BUFFER (8 * IO_BUFFER) // bytes, packets queued for an event loop
 
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
@@ -64,10 +72,19 @@
 
 #define SESSION_LIMIT 40 // percent
 #define SESSION_MAX (1024 * SESSION_LIMIT / 100) // number
+#define SESSION_BUCKETS 1024 // power of two
+#define SESSION_RESCALE 10 // percent of max sessions
+
+#define WHEEL_BITS 6
+#define WHEEL_SLOTS (1 << WHEEL_BITS)
+#define WHEEL_LEVELS 3 // slots of 1 second, 64 seconds and ~68 minutes
+#define WHEEL_SPAN (1 << (WHEEL_BITS * WHEEL_LEVELS)) // seconds
 
 #define SEND_BUF_DEFAULT 163840 // bytes
 
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_BUCKETS 256 // power of two
+#define UID_UNCACHED (-3) // not in the cache, see get_uid_sub
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
@@ -75,12 +92,46 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
+// Fixed size objects, allocated in slabs and reused (see netguard.c)
+struct pool {
+    size_t size; // bytes, aligned
+    const char *tag;
+    void *free; // free objects
+    void *slabs;
+};
+
+// Sessions, indexed by address and port, and by time of next check (see session.c)
+struct session_table {
+    struct ng_session *all;
+    struct ng_session *buckets[SESSION_BUCKETS];
+    struct ng_session *wheel[WHEEL_LEVELS][WHEEL_SLOTS];
+    time_t wheel_time; // last expired second
+    struct ng_session *pending; // to check before the next poll
+
+    // Active sessions
+    int icmp;
+    int udp;
+    int tcp;
+    int scaled; // when timeouts were last computed
+};
+
+// Sessions of one event loop, with the objects they are allocated from
+struct shard {
+    pthread_mutex_t lock; // held while handling events
+    struct session_table sessions;
+    struct pool session_pool;
+    struct pool segment_pool;
+};
+
 struct context {
-    pthread_mutex_t lock;
+    pthread_mutex_t lock; // decision table, shared by the event loops, never held during calls into Java
+    uint32_t invalidated; // decisions about addresses, under lock
     int pipefds[2];
     int stopping;
     int sdk;
-    struct ng_session *ng_session;
+    int shards; // in use, one per event loop (see worker.c)
+    struct shard shard[WORKER_MAX];
+    struct decision_table *decisions;
 };
 
 struct arguments {
@@ -90,6 +141,10 @@ struct arguments {
     jboolean fwd53;
     jint rcode;
     struct context *ctx;
+    struct shard *shard;
+    int in; // packets are read from, the tun or the queue of an event loop
+    uint8_t *rx; // received from tun or a socket
+    uint8_t *tx; // packet to tun
 };
 
 struct allowed {
@@ -97,6 +152,35 @@ struct allowed {
     uint16_t rport; // host notation
 };
 
+// Decisions made in Java, remembered in a direct buffer (see DecisionTable.java)
+
+#define VERDICT_BLOCK 0
+#define VERDICT_ALLOW 1
+#define VERDICT_REDIRECT 2
+#define VERDICT_MASK 0xff
+#define DECISION_LOG 0x100 // flag of a verdict, decided packets should be logged
+#define DECISION_KEEP 0x200 // flag of a verdict, the verdict can be remembered
+#define DECISION_PROBES 8
+#define DECISION_TTL 60 // seconds
+
+struct decision {
+    int32_t generation; // zero if unused
+    int32_t uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport; // host notation
+    uint32_t expires; // seconds
+    uint8_t daddr[16]; // IPv4 addresses zero padded
+    int32_t verdict;
+    int32_t log; // whether decided packets should be logged
+};
+
+struct decision_table {
+    volatile int32_t generation; // changed by Java to forget all decisions
+    int32_t size; // power of two
+    struct decision entries[];
+};
+
 struct segment {
     uint32_t seq;
     uint16_t len;
@@ -196,6 +280,11 @@ struct tcp_session {
     int checkedHostname;
 };
 
+struct session_link {
+    struct ng_session *next;
+    struct ng_session **pprev; // NULL if not linked
+};
+
 struct ng_session {
     uint8_t protocol;
     union {
@@ -205,10 +294,17 @@ struct ng_session {
     };
     jint socket;
     struct epoll_event ev;
-    struct ng_session *next;
+
+    struct session_link all;
+    struct session_link hash; // same bucket
+    struct session_link timer; // same wheel slot
+    struct session_link pending;
+    time_t due; // next check
+    uint8_t counted; // as active session
 };
 
 struct uid_cache_entry {
+    struct uid_cache_entry *next; // same bucket
     uint8_t version;
     uint8_t protocol;
     uint8_t saddr[16];
@@ -349,6 +445,20 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+uint32_t hash_session(uint8_t protocol, int version,
+                      const void *saddr, const void *daddr,
+                      __be16 source, __be16 dest);
+
+struct ng_session *find_session(struct shard *shard, uint8_t protocol, int version,
+                                const void *saddr, const void *daddr,
+                                __be16 source, __be16 dest);
+
+void add_session(struct shard *shard, struct ng_session *s);
+
+void touch_session(struct shard *shard, struct ng_session *s);
+
+void handle_workers(const struct arguments *args, int count);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -380,7 +490,7 @@ int check_tun(const struct arguments *args,
 
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
-void check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
+int check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname);
 
@@ -428,7 +538,7 @@ jboolean handle_udp(const struct arguments *args,
 int check_dhcp(const struct arguments *args, const struct udp_session *u,
                const uint8_t *data, const size_t datalen);
 
-void clear_tcp_data(struct tcp_session *cur);
+void clear_tcp_data(struct shard *shard, struct tcp_session *cur);
 
 jboolean handle_tcp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
@@ -474,6 +584,8 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst);
 
+ssize_t write_tun(const struct arguments *args, const uint8_t *buffer, size_t len);
+
 uint8_t char2nible(const char c);
 
 void hex2bytes(const char *hex, uint8_t *buffer);
@@ -486,7 +598,9 @@ jint get_uid_sub(const int version, const int protocol,
                  const void *saddr, const uint16_t sport,
                  const void *daddr, const uint16_t dport,
                  const char *source, const char *dest,
-                 long now);
+                 long now, int refresh);
+
+void clear_uid_cache();
 
 int protect_socket(const struct arguments *args, int socket);
 
@@ -518,12 +632,28 @@ jboolean is_domain_blocked(const struct arguments *args, const char *name);
 jint get_uid_q(const struct arguments *args,
                jint version,
                jint protocol,
-               const char *source,
+               const void *saddr,
                jint sport,
-               const char *dest,
+               const void *daddr,
                jint dport);
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
+struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket, jint *verdict);
+
+int get_decision(const struct arguments *args,
+                 jint version, jint protocol, const void *daddr, jint dport, jint uid,
+                 int *log);
+
+void put_decision(const struct arguments *args, int32_t generation,
+                  jint version, jint protocol, const void *daddr, jint dport, jint uid,
+                  jint verdict);
+
+void invalidate_decisions(const struct arguments *args, const char *resource);
+
+struct allowed *decide_address(const struct arguments *args,
+                               jint version, jint protocol, const char *flags,
+                               const char *source, jint sport,
+                               const char *dest, jint dport, const void *daddr,
+                               const char *data, jint uid);
 
 jobject create_packet(const struct arguments *args,
                       jint version,
@@ -570,4 +700,12 @@ void *ng_realloc(void *__ptr, size_t __byte_count, const char *tag);
 
 void ng_free(void *__ptr, const char *file, int line);
 
+void pool_init(struct pool *pool, size_t size, const char *tag);
+
+void *pool_alloc(struct pool *pool);
+
+void pool_free(struct pool *pool, void *ptr);
+
+void pool_clear(struct pool *pool);
+
 void ng_dump();
@@ -35,44 +35,50 @@ void write_pcap_hdr() {
     write_pcap(&pcap_hdr, sizeof(struct pcap_hdr_s));
 }
 
+static void check_pcap_size(size_t len) {
+    long fsize = ftell(pcap_file);
+    log_android(ANDROID_LOG_VERBOSE, "PCAP wrote %d @%ld", len, fsize);
+
+    if (fsize > pcap_file_size) {
+        log_android(ANDROID_LOG_WARN, "PCAP truncate @%ld", fsize);
+        if (ftruncate(fileno(pcap_file), sizeof(struct pcap_hdr_s)))
+            log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
+                        errno, strerror(errno));
+        else {
+            if (!lseek(fileno(pcap_file), sizeof(struct pcap_hdr_s), SEEK_SET))
+                log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
+                            errno, strerror(errno));
+        }
+    }
+}
+
 void write_pcap_rec(const uint8_t *buffer, size_t length) {
     struct timespec ts;
     if (clock_gettime(CLOCK_REALTIME, &ts))
         log_android(ANDROID_LOG_ERROR, "clock_gettime error %d: %s", errno, strerror(errno));
 
     size_t plen = (length < pcap_record_size ? length : pcap_record_size);
-    size_t rlen = sizeof(struct pcaprec_hdr_s) + plen;
-    struct pcaprec_hdr_s *pcap_rec = ng_malloc(rlen, "pcap");
-
-    pcap_rec->ts_sec = (guint32_t) ts.tv_sec;
-    pcap_rec->ts_usec = (guint32_t) (ts.tv_nsec / 1000);
-    pcap_rec->incl_len = (guint32_t) plen;
-    pcap_rec->orig_len = (guint32_t) length;
 
-    memcpy(((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), buffer, plen);
+    struct pcaprec_hdr_s pcap_rec;
+    pcap_rec.ts_sec = (guint32_t) ts.tv_sec;
+    pcap_rec.ts_usec = (guint32_t) (ts.tv_nsec / 1000);
+    pcap_rec.incl_len = (guint32_t) plen;
+    pcap_rec.orig_len = (guint32_t) length;
 
-    write_pcap(pcap_rec, rlen);
-
-    ng_free(pcap_rec, __FILE__, __LINE__);
+    // Header and data go into the file buffer directly, without copying into a record first
+    // The file is locked, so that records of the event loops do not interleave
+    flockfile(pcap_file);
+    if (fwrite(&pcap_rec, sizeof(struct pcaprec_hdr_s), 1, pcap_file) < 1 ||
+        (plen > 0 && fwrite(buffer, plen, 1, pcap_file) < 1))
+        log_android(ANDROID_LOG_ERROR, "PCAP fwrite error %d: %s", errno, strerror(errno));
+    else
+        check_pcap_size(sizeof(struct pcaprec_hdr_s) + plen);
+    funlockfile(pcap_file);
 }
 
 void write_pcap(const void *ptr, size_t len) {
     if (fwrite(ptr, len, 1, pcap_file) < 1)
         log_android(ANDROID_LOG_ERROR, "PCAP fwrite error %d: %s", errno, strerror(errno));
-    else {
-        long fsize = ftell(pcap_file);
-        log_android(ANDROID_LOG_VERBOSE, "PCAP wrote %d @%ld", len, fsize);
-
-        if (fsize > pcap_file_size) {
-            log_android(ANDROID_LOG_WARN, "PCAP truncate @%ld", fsize);
-            if (ftruncate(fileno(pcap_file), sizeof(struct pcap_hdr_s)))
-                log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
-                            errno, strerror(errno));
-            else {
-                if (!lseek(fileno(pcap_file), sizeof(struct pcap_hdr_s), SEEK_SET))
-                    log_android(ANDROID_LOG_ERROR, "PCAP ftruncate error %d: %s",
-                                errno, strerror(errno));
-            }
-        }
-    }
+    else
+        check_pcap_size(len);
 }
@@ -19,24 +19,377 @@
 
 #include "netguard.h"
 
-void clear(struct context *ctx) {
-    struct ng_session *s = ctx->ng_session;
+#define LINK_ALL offsetof(struct ng_session, all)
+#define LINK_HASH offsetof(struct ng_session, hash)
+#define LINK_TIMER offsetof(struct ng_session, timer)
+#define LINK_PENDING offsetof(struct ng_session, pending)
+
+static struct session_link *get_link(struct ng_session *s, size_t link) {
+    return (struct session_link *) ((char *) s + link);
+}
+
+static void link_session(struct ng_session **head, struct ng_session *s, size_t link) {
+    struct session_link *l = get_link(s, link);
+    l->next = *head;
+    if (*head != NULL)
+        get_link(*head, link)->pprev = &l->next;
+    l->pprev = head;
+    *head = s;
+}
+
+static void unlink_session(struct ng_session *s, size_t link) {
+    struct session_link *l = get_link(s, link);
+    if (l->pprev == NULL)
+        return;
+    *l->pprev = l->next;
+    if (l->next != NULL)
+        get_link(l->next, link)->pprev = l->pprev;
+    l->next = NULL;
+    l->pprev = NULL;
+}
+
+static uint8_t get_session_protocol(uint8_t protocol) {
+    return (uint8_t) (protocol == IPPROTO_ICMPV6 ? IPPROTO_ICMP : protocol);
+}
+
+static int get_session_key(const struct ng_session *s,
+                           const void **saddr, const void **daddr,
+                           __be16 *source, __be16 *dest) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        *saddr = &s->icmp.saddr;
+        *daddr = &s->icmp.daddr;
+        *source = 0;
+        *dest = 0;
+        return s->icmp.version;
+    } else if (s->protocol == IPPROTO_UDP) {
+        *saddr = &s->udp.saddr;
+        *daddr = &s->udp.daddr;
+        *source = s->udp.source;
+        *dest = s->udp.dest;
+        return s->udp.version;
+    } else {
+        *saddr = &s->tcp.saddr;
+        *daddr = &s->tcp.daddr;
+        *source = s->tcp.source;
+        *dest = s->tcp.dest;
+        return s->tcp.version;
+    }
+}
+
+static uint32_t hash_bytes(uint32_t hash, const void *data, size_t len) {
+    // FNV-1a
+    const uint8_t *b = (const uint8_t *) data;
+    for (size_t i = 0; i < len; i++)
+        hash = (hash ^ b[i]) * 16777619u;
+    return hash;
+}
+
+uint32_t hash_session(uint8_t protocol, int version,
+                      const void *saddr, const void *daddr,
+                      __be16 source, __be16 dest) {
+    size_t len = (version == 4 ? 4 : 16);
+    uint8_t head[2] = {get_session_protocol(protocol), (uint8_t) version};
+    uint32_t hash = hash_bytes(2166136261u, head, sizeof(head));
+    hash = hash_bytes(hash, saddr, len);
+    hash = hash_bytes(hash, daddr, len);
+    hash = hash_bytes(hash, &source, sizeof(source));
+    hash = hash_bytes(hash, &dest, sizeof(dest));
+    return hash;
+}
+
+static uint32_t get_session_bucket(const struct ng_session *s) {
+    const void *saddr;
+    const void *daddr;
+    __be16 source;
+    __be16 dest;
+    int version = get_session_key(s, &saddr, &daddr, &source, &dest);
+    return hash_session(s->protocol, version, saddr, daddr, source, dest) &
+           (SESSION_BUCKETS - 1);
+}
+
+struct ng_session *find_session(struct shard *shard, uint8_t protocol, int version,
+                                const void *saddr, const void *daddr,
+                                __be16 source, __be16 dest) {
+    protocol = get_session_protocol(protocol);
+    size_t len = (version == 4 ? 4 : 16);
+
+    uint32_t hash = hash_session(protocol, version, saddr, daddr, source, dest);
+    struct ng_session *s = shard->sessions.buckets[hash & (SESSION_BUCKETS - 1)];
     while (s != NULL) {
-        if (s->socket >= 0 && close(s->socket))
-            log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
-                        s->socket, errno, strerror(errno));
-        if (s->protocol == IPPROTO_TCP)
-            clear_tcp_data(&s->tcp);
-        struct ng_session *p = s;
-        s = s->next;
-        ng_free(p, __FILE__, __LINE__);
+        // Stopped ICMP sessions are replaced by new sessions
+        if (get_session_protocol(s->protocol) == protocol &&
+            !(protocol == IPPROTO_ICMP && s->icmp.stop)) {
+            const void *ssaddr;
+            const void *sdaddr;
+            __be16 ssource;
+            __be16 sdest;
+            if (get_session_key(s, &ssaddr, &sdaddr, &ssource, &sdest) == version &&
+                ssource == source && sdest == dest &&
+                memcmp(ssaddr, saddr, len) == 0 && memcmp(sdaddr, daddr, len) == 0)
+                return s;
+        }
+        s = s->hash.next;
+    }
+    return NULL;
+}
+
+void touch_session(struct shard *shard, struct ng_session *s) {
+    if (s->pending.pprev == NULL)
+        link_session(&shard->sessions.pending, s, LINK_PENDING);
+}
+
+void add_session(struct shard *shard, struct ng_session *s) {
+    memset(&s->all, 0, sizeof(struct session_link));
+    memset(&s->hash, 0, sizeof(struct session_link));
+    memset(&s->timer, 0, sizeof(struct session_link));
+    memset(&s->pending, 0, sizeof(struct session_link));
+    s->due = 0;
+    s->counted = 0;
+
+    link_session(&shard->sessions.all, s, LINK_ALL);
+    link_session(&shard->sessions.buckets[get_session_bucket(s)], s, LINK_HASH);
+    touch_session(shard, s);
+}
+
+static int *get_counter(struct session_table *t, const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return &t->icmp;
+    else if (s->protocol == IPPROTO_UDP)
+        return &t->udp;
+    else
+        return &t->tcp;
+}
+
+static uint8_t is_active(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return (uint8_t) !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return (uint8_t) (s->udp.state == UDP_ACTIVE);
+    else
+        return (uint8_t) (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE);
+}
+
+static void count_session(struct session_table *t, struct ng_session *s) {
+    uint8_t active = is_active(s);
+    if (active != s->counted) {
+        *get_counter(t, s) += (active ? 1 : -1);
+        s->counted = active;
+    }
+}
+
+static void remove_session(struct shard *shard, struct ng_session *s) {
+    if (s->counted)
+        (*get_counter(&shard->sessions, s))--;
+
+    unlink_session(s, LINK_ALL);
+    unlink_session(s, LINK_HASH);
+    unlink_session(s, LINK_TIMER);
+    unlink_session(s, LINK_PENDING);
+
+    if (s->protocol == IPPROTO_TCP)
+        clear_tcp_data(shard, &s->tcp);
+    pool_free(&shard->session_pool, s);
+}
+
+static time_t get_session_due(const struct ng_session *s, int sessions, int maxsessions,
+                              time_t now) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        if (s->icmp.stop)
+            return now;
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+    } else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        else if (s->udp.state == UDP_FINISHING)
+            return now;
+        return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+    } else {
+        if (s->tcp.state == TCP_CLOSING)
+            return now;
+        else if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+        return s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+    }
+}
+
+// The wheel has 64 slots of one second, then 64 slots of 64 seconds, then 64 slots of 4096
+// seconds. Sessions are put in the lowest level that differs from the next second to expire
+// only, and move down a level when the wheel reaches their slot.
+
+static void schedule_session(struct session_table *t, struct ng_session *s, time_t due) {
+    unlink_session(s, LINK_TIMER);
+
+    time_t base = t->wheel_time + 1;
+    if (due < base)
+        due = base;
+    if ((due >> (2 * WHEEL_BITS)) - (base >> (2 * WHEEL_BITS)) >= WHEEL_SLOTS)
+        due = (((base >> (2 * WHEEL_BITS)) + WHEEL_SLOTS) << (2 * WHEEL_BITS)) - 1;
+    s->due = due;
+
+    int level;
+    if ((due >> WHEEL_BITS) == (base >> WHEEL_BITS))
+        level = 0;
+    else if ((due >> (2 * WHEEL_BITS)) == (base >> (2 * WHEEL_BITS)))
+        level = 1;
+    else
+        level = 2;
+    int slot = (int) ((due >> (level * WHEEL_BITS)) & (WHEEL_SLOTS - 1));
+    link_session(&t->wheel[level][slot], s, LINK_TIMER);
+}
+
+static void cascade_sessions(struct session_table *t, int level, int slot) {
+    struct ng_session *s = t->wheel[level][slot];
+    while (s != NULL) {
+        struct ng_session *next = s->timer.next;
+        schedule_session(t, s, s->due);
+        s = next;
+    }
+}
+
+static void touch_all_sessions(struct shard *shard) {
+    struct ng_session *s = shard->sessions.all;
+    while (s != NULL) {
+        unlink_session(s, LINK_TIMER);
+        touch_session(shard, s);
+        s = s->all.next;
+    }
+}
+
+static void expire_sessions(struct shard *shard, time_t now, int maxsessions) {
+    struct session_table *t = &shard->sessions;
+
+    // Timeouts get shorter with more sessions
+    int sessions = t->icmp + t->udp + t->tcp;
+    if (sessions < t->scaled)
+        t->scaled = sessions;
+    else if (sessions - t->scaled > maxsessions * SESSION_RESCALE / 100) {
+        log_android(ANDROID_LOG_DEBUG, "Rescale timeouts sessions %d/%d", t->scaled, sessions);
+        touch_all_sessions(shard);
+        t->scaled = sessions;
+    }
+
+    // Start over after the clock changed or a long sleep
+    if (t->wheel_time == 0 || now < t->wheel_time || now - t->wheel_time >= WHEEL_SPAN) {
+        touch_all_sessions(shard);
+        t->wheel_time = now;
+        return;
+    }
+
+    while (t->wheel_time < now) {
+        time_t next = t->wheel_time + 1;
+        if ((next & ((1 << (2 * WHEEL_BITS)) - 1)) == 0)
+            cascade_sessions(t, 2, (int) ((next >> (2 * WHEEL_BITS)) & (WHEEL_SLOTS - 1)));
+        if ((next & (WHEEL_SLOTS - 1)) == 0)
+            cascade_sessions(t, 1, (int) ((next >> WHEEL_BITS) & (WHEEL_SLOTS - 1)));
+        t->wheel_time = next;
+
+        struct ng_session **slot = &t->wheel[0][next & (WHEEL_SLOTS - 1)];
+        while (*slot != NULL) {
+            struct ng_session *s = *slot;
+            unlink_session(s, LINK_TIMER);
+            touch_session(shard, s);
+        }
+    }
+}
+
+static int get_wheel_timeout(const struct session_table *t) {
+    time_t base = t->wheel_time + 1;
+
+    // Slots of higher levels starting at the next second are yet to be cascaded
+    if ((base & ((1 << (2 * WHEEL_BITS)) - 1)) == 0 &&
+        t->wheel[2][(base >> (2 * WHEEL_BITS)) & (WHEEL_SLOTS - 1)] != NULL)
+        return 1;
+    if ((base & (WHEEL_SLOTS - 1)) == 0 &&
+        t->wheel[1][(base >> WHEEL_BITS) & (WHEEL_SLOTS - 1)] != NULL)
+        return 1;
+
+    for (time_t sec = base; sec < ((base >> WHEEL_BITS) + 1) << WHEEL_BITS; sec++)
+        if (t->wheel[0][sec & (WHEEL_SLOTS - 1)] != NULL)
+            return (int) (sec - t->wheel_time);
+
+    time_t block = (base >> WHEEL_BITS) + 1;
+    for (; block < ((base >> (2 * WHEEL_BITS)) + 1) << WHEEL_BITS; block++)
+        if (t->wheel[1][block & (WHEEL_SLOTS - 1)] != NULL)
+            return (int) ((block << WHEEL_BITS) - t->wheel_time);
+
+    block = (base >> (2 * WHEEL_BITS)) + 1;
+    for (; block < (base >> (2 * WHEEL_BITS)) + WHEEL_SLOTS; block++)
+        if (t->wheel[2][block & (WHEEL_SLOTS - 1)] != NULL)
+            return (int) ((block << (2 * WHEEL_BITS)) - t->wheel_time);
+
+    return -1;
+}
+
+static int check_sessions(const struct arguments *args, int epoll_fd, int check,
+                          int maxsessions) {
+    struct session_table *t = &args->shard->sessions;
+    int sessions = t->icmp + t->udp + t->tcp;
+    time_t now = time(NULL);
+    int recheck = 0;
+
+    // Sessions being checked are moved to a list of their own
+    struct ng_session *checking = t->pending;
+    t->pending = NULL;
+    if (checking != NULL)
+        checking->pending.pprev = &checking;
+
+    while (checking != NULL) {
+        struct ng_session *s = checking;
+        unlink_session(s, LINK_PENDING);
+
+        int monitor = 0;
+        if (s->protocol == IPPROTO_TCP && s->socket >= 0)
+            monitor = monitor_tcp_session(args, s, epoll_fd);
+
+        if (check) {
+            int del = 0;
+            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+                del = check_icmp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_UDP)
+                del = check_udp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_TCP)
+                del = check_tcp_session(args, s, sessions, maxsessions);
+
+            if (del) {
+                remove_session(args->shard, s);
+                continue;
+            }
+
+            schedule_session(t, s, get_session_due(s, sessions, maxsessions, now));
+        }
+
+        count_session(t, s);
+
+        if (monitor || !check) {
+            recheck = 1;
+            touch_session(args->shard, s);
+        }
+    }
+
+    return recheck;
+}
+
+void clear(struct context *ctx) {
+    for (int i = 0; i < WORKER_MAX; i++) {
+        struct shard *shard = &ctx->shard[i];
+        struct ng_session *s = shard->sessions.all;
+        while (s != NULL) {
+            if (s->socket >= 0 && close(s->socket))
+                log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
+                            s->socket, errno, strerror(errno));
+            if (s->protocol == IPPROTO_TCP)
+                clear_tcp_data(shard, &s->tcp);
+            struct ng_session *p = s;
+            s = s->all.next;
+            pool_free(&shard->session_pool, p);
+        }
+        memset(&shard->sessions, 0, sizeof(struct session_table));
     }
-    ctx->ng_session = NULL;
 }
 
 void *handle_events(void *a) {
     struct arguments *args = (struct arguments *) a;
-    log_android(ANDROID_LOG_WARN, "Start events tun=%d", args->tun);
+    log_android(ANDROID_LOG_WARN, "Start events tun=%d in=%d", args->tun, args->in);
 
     // Get max number of sessions
     int maxsessions = SESSION_MAX;
@@ -54,6 +407,10 @@ void *handle_events(void *a) {
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
+    // Buffers for all packets of this thread
+    args->rx = ng_malloc(IO_BUFFER, "rx");
+    args->tx = ng_malloc(IO_BUFFER, "tx");
+
     // Open epoll file
     int epoll_fd = epoll_create(1);
     if (epoll_fd < 0) {
@@ -73,12 +430,12 @@ void *handle_events(void *a) {
         args->ctx->stopping = 1;
     }
 
-    // Monitor tun events
+    // Monitor tun events, or packets of the tun queued by the reader
     struct epoll_event ev_tun;
     memset(&ev_tun, 0, sizeof(struct epoll_event));
     ev_tun.events = EPOLLIN | EPOLLERR;
     ev_tun.data.ptr = NULL;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->in, &ev_tun)) {
         log_android(ANDROID_LOG_ERROR, "epoll add tun error %d: %s", errno, strerror(errno));
         report_exit(args, "epoll add tun error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
@@ -89,91 +446,27 @@ void *handle_events(void *a) {
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
-        int recheck = 0;
-        int timeout = EPOLL_TIMEOUT;
-
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
-        while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
-            }
-            s = s->next;
-        }
-        int sessions = isessions + usessions + tsessions;
-
-        // Check sessions
+        // Check sessions with activity or a due timeout only
         long long ms = get_ms();
-        if (ms - last_check > EPOLL_MIN_CHECK) {
+        int check = (ms - last_check > EPOLL_MIN_CHECK);
+        if (check) {
             last_check = ms;
+            expire_sessions(args->shard, time(NULL), maxsessions);
+        } else
+            log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
 
-            time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
+        int recheck = check_sessions(args, epoll_fd, check, maxsessions);
 
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
+        struct session_table *t = &args->shard->sessions;
+        int sessions = t->icmp + t->udp + t->tcp;
 
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    ng_free(c, __FILE__, __LINE__);
-                } else {
-                    sl = s;
-                    s = s->next;
-                }
-            }
-        } else {
-            recheck = 1;
-            log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
-        }
+        int timeout = get_wheel_timeout(t);
+        if (timeout < 0 || timeout > EPOLL_TIMEOUT)
+            timeout = EPOLL_TIMEOUT;
 
         log_android(ANDROID_LOG_DEBUG,
                     "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
-                    isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
+                    t->icmp, t->udp, t->tcp, sessions, maxsessions, timeout, recheck);
 
         // Poll
         struct epoll_event ev[EPOLL_EVENTS];
@@ -198,13 +491,17 @@ void *handle_events(void *a) {
             log_android(ANDROID_LOG_DEBUG, "epoll timeout");
         else {
 
-            if (pthread_mutex_lock(&args->ctx->lock))
+            if (pthread_mutex_lock(&args->shard->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
             int error = 0;
 
             for (int i = 0; i < ready; i++) {
                 if (ev[i].data.ptr == &ev_pipe) {
+                    // Event loops of the reader leave the pipe to wake each other (see worker.c)
+                    if (args->in != args->tun)
+                        continue;
+
                     // Check pipe
                     uint8_t buffer[1];
                     if (read(args->ctx->pipefds[0], buffer, 1) < 0)
@@ -222,12 +519,15 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
+                    // Read until no packets are left, at most a batch at once
                     int count = 0;
-                    while (count < TUN_YIELD && !error && !args->ctx->stopping &&
-                           is_readable(args->tun)) {
-                        count++;
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
+                    while (count < TUN_BATCH && !error && !args->ctx->stopping) {
+                        int rc = check_tun(args, &ev[i], epoll_fd, sessions, maxsessions);
+                        if (rc < 0)
                             error = 1;
+                        else if (rc == 0)
+                            break;
+                        count++;
                     }
 
                 } else {
@@ -243,17 +543,18 @@ void *handle_events(void *a) {
                                 ((struct ng_session *) ev[i].data.ptr)->socket);
 
                     struct ng_session *session = (struct ng_session *) ev[i].data.ptr;
+                    touch_session(args->shard, session);
+
                     if (session->protocol == IPPROTO_ICMP ||
                         session->protocol == IPPROTO_ICMPV6)
                         check_icmp_socket(args, &ev[i]);
                     else if (session->protocol == IPPROTO_UDP) {
+                        // Receive until no datagrams are left, at most a batch at once
                         int count = 0;
                         while (count < UDP_YIELD && !args->ctx->stopping &&
                                !(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN) &&
-                               is_readable(session->socket)) {
+                               check_udp_socket(args, &ev[i]) > 0)
                             count++;
-                            check_udp_socket(args, &ev[i]);
-                        }
                     } else if (session->protocol == IPPROTO_TCP)
                         check_tcp_socket(args, &ev[i], epoll_fd);
                 }
@@ -262,7 +563,7 @@ void *handle_events(void *a) {
                     break;
             }
 
-            if (pthread_mutex_unlock(&args->ctx->lock))
+            if (pthread_mutex_unlock(&args->shard->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
             if (error)
@@ -276,6 +577,8 @@ void *handle_events(void *a) {
                     "epoll close error %d: %s", errno, strerror(errno));
 
     // Cleanup
+    ng_free(args->rx, __FILE__, __LINE__);
+    ng_free(args->tx, __FILE__, __LINE__);
     ng_free(args, __FILE__, __LINE__);
 
     log_android(ANDROID_LOG_WARN, "Stopped events tun=%d", args->tun);
@@ -286,9 +589,13 @@ void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    struct ng_session *l = NULL;
-    struct ng_session *s = args->ctx->ng_session;
+    struct ng_session *s = args->shard->sessions.all;
     while (s != NULL) {
+        struct ng_session *next = s->all.next;
+
+        // Check all sessions again with the new rules
+        touch_session(args->shard, s);
+
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
             if (!s->icmp.stop) {
                 if (s->icmp.version == 4) {
@@ -299,10 +606,9 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->icmp.version, IPPROTO_ICMP, "",
-                        source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (decide_address(args, s->icmp.version, IPPROTO_ICMP, "",
+                                   source, 0, dest, 0, &s->icmp.daddr,
+                                   "", s->icmp.uid) == NULL) {
                     s->icmp.stop = 1;
                     log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
                                 s->socket, s->icmp.uid);
@@ -319,26 +625,16 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->udp.version, IPPROTO_UDP, "",
-                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (decide_address(args, s->udp.version, IPPROTO_UDP, "",
+                                   source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), &s->udp.daddr,
+                                   "", s->udp.uid) == NULL) {
                     s->udp.state = UDP_FINISHING;
                     log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
                                 s->socket, s->udp.uid);
                 }
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
-
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
-                struct ng_session *c = s;
-                s = s->next;
-                ng_free(c, __FILE__, __LINE__);
-                continue;
+                remove_session(args->shard, s);
             }
 
         } else if (s->protocol == IPPROTO_TCP) {
@@ -351,10 +647,9 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->tcp.version, IPPROTO_TCP, "",
-                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (decide_address(args, s->tcp.version, IPPROTO_TCP, "",
+                                   source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), &s->tcp.daddr,
+                                   "", s->tcp.uid) == NULL) {
                     write_rst(args, &s->tcp);
                     log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
                                 s->socket, s->tcp.uid);
@@ -363,8 +658,7 @@ void check_allowed(const struct arguments *args) {
 
         }
 
-        l = s;
-        s = s->next;
+        s = next;
     }
 }
 
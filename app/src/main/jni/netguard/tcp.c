@@ -26,14 +26,15 @@ extern char socks5_password[127 + 1];
 
 extern FILE *pcap_file;
 
-void clear_tcp_data(struct tcp_session *cur) {
+void clear_tcp_data(struct shard *shard, struct tcp_session *cur) {
     struct segment *s = cur->forward;
     while (s != NULL) {
         struct segment *p = s;
         s = s->next;
         ng_free(p->data, __FILE__, __LINE__);
-        ng_free(p, __FILE__, __LINE__);
+        pool_free(&shard->segment_pool, p);
     }
+    cur->forward = NULL;
 }
 
 int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions) {
@@ -507,7 +508,7 @@ void check_tcp_socket(const struct arguments *args,
                             struct segment *p = s->tcp.forward;
                             s->tcp.forward = s->tcp.forward->next;
                             ng_free(p->data, __FILE__, __LINE__);
-                            ng_free(p, __FILE__, __LINE__);
+                            pool_free(&args->shard->segment_pool, p);
                         } else {
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
@@ -557,7 +558,7 @@ void check_tcp_socket(const struct arguments *args,
 
                     uint32_t buffer_size = (send_window > s->tcp.mss
                                             ? s->tcp.mss : send_window);
-                    uint8_t *buffer = ng_malloc(buffer_size, "tcp socket");
+                    uint8_t *buffer = args->rx;
                     ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
                     if (bytes < 0) {
                         // Socket error
@@ -609,7 +610,6 @@ void check_tcp_socket(const struct arguments *args,
                             s->tcp.unconfirmed++;
                         }
                     }
-                    ng_free(buffer, __FILE__, __LINE__);
                 }
             }
         }
@@ -636,16 +636,13 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->shard, IPPROTO_TCP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            tcphdr->source, tcphdr->dest);
+    if (cur != NULL)
+        touch_session(args->shard, cur);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -723,7 +720,7 @@ jboolean handle_tcp(const struct arguments *args,
                         packet, mss, ws, ntohs(tcphdr->window) << ws);
 
             // Register session
-            struct ng_session *s = ng_malloc(sizeof(struct ng_session), "tcp session");
+            struct ng_session *s = pool_alloc(&args->shard->session_pool);
             s->protocol = IPPROTO_TCP;
 
             s->tcp.time = time(NULL);
@@ -756,11 +753,10 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
             s->tcp.forward = NULL;
-            s->next = NULL;
 
             if (datalen) {
                 log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
-                s->tcp.forward = ng_malloc(sizeof(struct segment), "syn segment");
+                s->tcp.forward = pool_alloc(&args->shard->segment_pool);
                 s->tcp.forward->seq = s->tcp.remote_seq;
                 s->tcp.forward->len = datalen;
                 s->tcp.forward->sent = 0;
@@ -774,7 +770,8 @@ jboolean handle_tcp(const struct arguments *args,
             s->socket = open_tcp_socket(args, &s->tcp, redirect);
             if (s->socket < 0) {
                 // Remote might retry
-                ng_free(s, __FILE__, __LINE__);
+                clear_tcp_data(args->shard, &s->tcp);
+                pool_free(&args->shard->session_pool, s);
                 return 0;
             }
 
@@ -791,8 +788,7 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->shard, s);
 
             if (!allowed) {
                 log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
@@ -995,7 +991,7 @@ void queue_tcp(const struct arguments *args,
             log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
                         session,
                         seq - cur->remote_start, seq + datalen - cur->remote_start);
-            struct segment *n = ng_malloc(sizeof(struct segment), "tcp segment");
+            struct segment *n = pool_alloc(&args->shard->segment_pool);
             n->seq = seq;
             n->len = datalen;
             n->sent = 0;
@@ -1183,12 +1179,19 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    // Build packet
+    // Packets are built in the buffer of the thread
     int optlen = (syn ? 4 + 3 + 1 : 0);
+    if ((cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+        sizeof(struct tcphdr) + optlen + datalen > IO_BUFFER) {
+        log_android(ANDROID_LOG_ERROR, "TCP write data %d too large", datalen);
+        return -1;
+    }
+
+    // Build packet
     uint8_t *options;
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write4");
+        buffer = args->tx;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
         options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
@@ -1219,7 +1222,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write 6");
+        buffer = args->tx;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
         options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
@@ -1301,7 +1304,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                 ntohl(tcp->ack_seq) - cur->remote_start,
                 datalen);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len);
 
     // Write pcap record
     if (res >= 0) {
@@ -1316,8 +1319,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                     datalen,
                     errno, strerror((errno)));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
         return -1;
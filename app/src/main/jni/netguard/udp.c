@@ -82,8 +82,9 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
     return 0;
 }
 
-void check_udp_socket(const struct arguments *args, const struct epoll_event *ev) {
+int check_udp_socket(const struct arguments *args, const struct epoll_event *ev) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
+    int received = 0;
 
     // Check socket error
     if (ev->events & EPOLLERR) {
@@ -104,14 +105,18 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
         if (ev->events & EPOLLIN) {
             s->udp.time = time(NULL);
 
-            uint8_t *buffer = ng_malloc(s->udp.mss, "udp recv");
-            ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
+            uint8_t *buffer = args->rx;
+            ssize_t bytes = recv(s->socket, buffer, s->udp.mss, MSG_DONTWAIT);
             if (bytes < 0) {
+                // No datagrams left
+                if (errno == EAGAIN || errno == EWOULDBLOCK)
+                    return 0;
+
                 // Socket error
                 log_android(ANDROID_LOG_WARN, "UDP recv error %d: %s",
                             errno, strerror(errno));
 
-                if (errno != EINTR && errno != EAGAIN)
+                if (errno != EINTR)
                     s->udp.state = UDP_FINISHING;
             } else if (bytes == 0) {
                 log_android(ANDROID_LOG_WARN, "UDP recv eof");
@@ -119,6 +124,8 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
 
             } else {
                 // Socket read data
+                received = 1;
+
                 char dest[INET6_ADDRSTRLEN + 1];
                 if (s->udp.version == 4)
                     inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
@@ -142,9 +149,10 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                         s->udp.state = UDP_FINISHING;
                 }
             }
-            ng_free(buffer, __FILE__, __LINE__);
         }
     }
+
+    return received;
 }
 
 int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint8_t *payload) {
@@ -158,16 +166,11 @@ int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint
         return 1;
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->shard, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->source, udphdr->dest);
 
     return (cur != NULL);
 }
@@ -196,7 +199,7 @@ void block_udp(const struct arguments *args,
                 source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
 
     // Register session
-    struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session block");
+    struct ng_session *s = pool_alloc(&args->shard->session_pool);
     s->protocol = IPPROTO_UDP;
 
     s->udp.time = time(NULL);
@@ -216,8 +219,7 @@ void block_udp(const struct arguments *args,
     s->udp.state = UDP_BLOCKED;
     s->socket = -1;
 
-    s->next = args->ctx->ng_session;
-    args->ctx->ng_session = s;
+    add_session(args->shard, s);
 }
 
 jboolean handle_udp(const struct arguments *args,
@@ -234,16 +236,11 @@ jboolean handle_udp(const struct arguments *args,
     const size_t datalen = length - (data - pkt);
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->shard, IPPROTO_UDP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->source, udphdr->dest);
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -267,7 +264,7 @@ jboolean handle_udp(const struct arguments *args,
                     source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
 
         // Register session
-        struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session");
+        struct ng_session *s = pool_alloc(&args->shard->session_pool);
         s->protocol = IPPROTO_UDP;
 
         s->udp.time = time(NULL);
@@ -295,12 +292,11 @@ jboolean handle_udp(const struct arguments *args,
         s->udp.source = udphdr->source;
         s->udp.dest = udphdr->dest;
         s->udp.state = UDP_ACTIVE;
-        s->next = NULL;
 
         // Open UDP socket
         s->socket = open_udp_socket(args, &s->udp, redirect);
         if (s->socket < 0) {
-            ng_free(s, __FILE__, __LINE__);
+            pool_free(&args->shard->session_pool, s);
             return 0;
         }
 
@@ -313,11 +309,11 @@ jboolean handle_udp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->shard, s);
 
         cur = s;
-    }
+    } else
+        touch_session(args->shard, cur);
 
     // Check for DHCP (tethering)
     if (ntohs(udphdr->source) == 68 || ntohs(udphdr->dest) == 67) {
@@ -444,10 +440,17 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
+    // Packets are built in the buffer of the thread
+    if ((cur->version == 4 ? sizeof(struct iphdr) : sizeof(struct ip6_hdr)) +
+        sizeof(struct udphdr) + datalen > IO_BUFFER) {
+        log_android(ANDROID_LOG_ERROR, "UDP write data %d too large", datalen);
+        return -1;
+    }
+
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write4");
+        buffer = args->tx;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
         if (datalen)
@@ -477,7 +480,7 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write6");
+        buffer = args->tx;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
         if (datalen)
@@ -529,7 +532,7 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                 "UDP sending to tun %d from %s/%u to %s/%u data %u",
                 args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
 
-    ssize_t res = write(args->tun, buffer, len);
+    ssize_t res = write_tun(args, buffer, len);
 
     // Write PCAP record
     if (res >= 0) {
@@ -538,8 +541,6 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     } else
         log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
@@ -0,0 +1,296 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// With more than one event loop, the thread of jni_run only reads the tun, and queues each packet
+// for the event loop owning the shard of its addresses and ports. The event loops run in threads
+// of their own, attached to the JVM for their calls into Java, and write to the tun directly.
+
+struct worker {
+    struct arguments *args;
+    JavaVM *vm;
+    pthread_t thread;
+    int started;
+    int queue[2]; // packets, sent by the reader, received by the event loop
+    unsigned int dropped; // packets, because the queue was full
+};
+
+static int get_shard(const uint8_t *pkt, size_t length, int count) {
+    uint8_t protocol;
+    const void *saddr;
+    const void *daddr;
+    const uint8_t *payload = NULL;
+
+    // Ports are used only if they are at the same place in every packet of the session
+    uint8_t version = (*pkt) >> 4;
+    if (version == 4) {
+        if (length < sizeof(struct iphdr))
+            return 0;
+
+        const struct iphdr *ip4hdr = (const struct iphdr *) pkt;
+        protocol = ip4hdr->protocol;
+        saddr = &ip4hdr->saddr;
+        daddr = &ip4hdr->daddr;
+        if (!(ntohs(ip4hdr->frag_off) & IP_OFFMASK))
+            payload = pkt + ip4hdr->ihl * 4;
+    } else if (version == 6) {
+        if (length < sizeof(struct ip6_hdr))
+            return 0;
+
+        const struct ip6_hdr *ip6hdr = (const struct ip6_hdr *) pkt;
+        protocol = ip6hdr->ip6_nxt;
+        saddr = &ip6hdr->ip6_src;
+        daddr = &ip6hdr->ip6_dst;
+        if (is_upper_layer(protocol))
+            payload = pkt + sizeof(struct ip6_hdr);
+    } else
+        return 0;
+
+    __be16 source = 0;
+    __be16 dest = 0;
+    if ((protocol == IPPROTO_UDP || protocol == IPPROTO_TCP) &&
+        payload != NULL && payload + 4 <= pkt + length) {
+        memcpy(&source, payload, sizeof(source));
+        memcpy(&dest, payload + 2, sizeof(dest));
+    }
+
+    // The low bits select the bucket within the shard
+    uint32_t hash = hash_session(protocol, version, saddr, daddr, source, dest);
+    return (int) ((hash >> 16) % count);
+}
+
+static void queue_packet(struct worker *w, const uint8_t *buffer, size_t length) {
+    ssize_t sent;
+    do
+        sent = send(w->queue[0], buffer, length, MSG_DONTWAIT);
+    while (sent < 0 && errno == EINTR);
+
+    // Drop for a busy event loop, like a full tun would, rather than hold up the other event loops
+    if (sent < 0) {
+        if (errno == EAGAIN || errno == EWOULDBLOCK) {
+            if (w->dropped++ % 1000 == 0)
+                log_android(ANDROID_LOG_WARN, "queue %d full, dropped %u",
+                            w->queue[0], w->dropped);
+        } else
+            log_android(ANDROID_LOG_WARN, "queue %d send error %d: %s",
+                        w->queue[0], errno, strerror(errno));
+    }
+}
+
+static void stop_workers(struct context *ctx) {
+    ctx->stopping = 1;
+    if (write(ctx->pipefds[1], "w", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+static void *run_worker(void *data) {
+    struct worker *w = (struct worker *) data;
+    struct context *ctx = w->args->ctx;
+    int shard = (int) (w->args->shard - ctx->shard);
+
+    JNIEnv *env;
+    if ((*w->vm)->AttachCurrentThread(w->vm, &env, NULL) != JNI_OK) {
+        log_android(ANDROID_LOG_ERROR, "Event loop %d attach failed", shard);
+        ng_free(w->args, __FILE__, __LINE__);
+    } else {
+        w->args->env = env;
+        handle_events(w->args);
+
+        if ((*w->vm)->DetachCurrentThread(w->vm) != JNI_OK)
+            log_android(ANDROID_LOG_ERROR, "Event loop %d detach failed", shard);
+    }
+
+    // Stop the reader and the other event loops as well, and wake them up,
+    // also if this event loop stopped itself, for example on an epoll error
+    if (!ctx->stopping)
+        log_android(ANDROID_LOG_WARN, "Event loop %d stopped", shard);
+    stop_workers(ctx);
+
+    return NULL;
+}
+
+void handle_workers(const struct arguments *args, int count) {
+    struct context *ctx = args->ctx;
+    log_android(ANDROID_LOG_WARN, "Start reader tun=%d event loops %d", args->tun, count);
+
+    JavaVM *vm = NULL;
+    if ((*args->env)->GetJavaVM(args->env, &vm) != JNI_OK) {
+        log_android(ANDROID_LOG_ERROR, "GetJavaVM failed");
+        report_exit(args, "GetJavaVM failed");
+        return;
+    }
+
+    // The event loops call into Java from their own threads
+    jobject instance = jniGlobalRef(args->env, args->instance);
+    ng_add_alloc(instance, "instance");
+
+    int error = 0;
+    struct worker workers[WORKER_MAX];
+    memset(workers, 0, sizeof(workers));
+    for (int i = 0; i < count; i++) {
+        workers[i].queue[0] = -1;
+        workers[i].queue[1] = -1;
+    }
+
+    for (int i = 0; i < count && !error; i++) {
+        struct worker *w = &workers[i];
+
+        // Sequenced packets keep the boundaries of the packets
+        if (socketpair(AF_UNIX, SOCK_SEQPACKET | SOCK_NONBLOCK | SOCK_CLOEXEC, 0, w->queue)) {
+            log_android(ANDROID_LOG_ERROR, "socketpair error %d: %s", errno, strerror(errno));
+            report_exit(args, "socketpair error %d: %s", errno, strerror(errno));
+            w->queue[0] = -1;
+            w->queue[1] = -1;
+            error = 1;
+            break;
+        }
+
+        int sndbuf = WORKER_BUFFER;
+        if (setsockopt(w->queue[0], SOL_SOCKET, SO_SNDBUF, &sndbuf, sizeof(sndbuf)))
+            log_android(ANDROID_LOG_WARN, "setsockopt SO_SNDBUF error %d: %s",
+                        errno, strerror(errno));
+
+        w->vm = vm;
+        w->args = ng_malloc(sizeof(struct arguments), "arguments");
+        memcpy(w->args, args, sizeof(struct arguments));
+        w->args->env = NULL;
+        w->args->instance = instance;
+        w->args->shard = &ctx->shard[i];
+        w->args->in = w->queue[1];
+
+        int err = pthread_create(&w->thread, NULL, run_worker, w);
+        if (err) {
+            log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+            report_exit(args, "pthread_create error %d: %s", err, strerror(err));
+            ng_free(w->args, __FILE__, __LINE__);
+            error = 1;
+        } else
+            w->started = 1;
+    }
+
+    // Open epoll file
+    int epoll_fd = -1;
+    if (!error) {
+        epoll_fd = epoll_create(1);
+        if (epoll_fd < 0) {
+            log_android(ANDROID_LOG_ERROR, "epoll create error %d: %s", errno, strerror(errno));
+            report_exit(args, "epoll create error %d: %s", errno, strerror(errno));
+            error = 1;
+        }
+    }
+
+    // Monitor stop events and tun events
+    int fds[2] = {ctx->pipefds[0], args->tun};
+    for (int i = 0; i < 2 && !error; i++) {
+        struct epoll_event ev;
+        memset(&ev, 0, sizeof(struct epoll_event));
+        ev.events = EPOLLIN | EPOLLERR;
+        ev.data.fd = fds[i];
+        if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, fds[i], &ev)) {
+            log_android(ANDROID_LOG_ERROR, "epoll add %d error %d: %s",
+                        fds[i], errno, strerror(errno));
+            report_exit(args, "epoll add %d error %d: %s", fds[i], errno, strerror(errno));
+            error = 1;
+        }
+    }
+
+    // Loop
+    uint8_t *buffer = ng_malloc(IO_BUFFER, "rx");
+    while (!error && !ctx->stopping) {
+        struct epoll_event ev[2];
+        int ready = epoll_wait(epoll_fd, ev, 2, EPOLL_TIMEOUT * 1000);
+        if (ready < 0) {
+            if (errno == EINTR)
+                continue;
+            log_android(ANDROID_LOG_ERROR, "epoll tun %d error %d: %s",
+                        args->tun, errno, strerror(errno));
+            report_exit(args, "epoll tun %d error %d: %s", args->tun, errno, strerror(errno));
+            break;
+        }
+
+        for (int i = 0; i < ready && !error; i++) {
+            // The pipe is read when the event loops stopped
+            if (ev[i].data.fd != args->tun)
+                continue;
+
+            if (ev[i].events & EPOLLERR) {
+                log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
+                report_exit(args, "tun %d exception", args->tun);
+                error = 1;
+                break;
+            }
+
+            // Read until no packets are left, at most a batch at once
+            for (int n = 0; n < TUN_BATCH && !ctx->stopping; n++) {
+                ssize_t length = read(args->tun, buffer, get_mtu());
+                if (length < 0) {
+                    if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR)
+                        break;
+                    log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
+                                args->tun, errno, strerror(errno));
+                    report_exit(args, "tun %d read error %d: %s",
+                                args->tun, errno, strerror(errno));
+                    error = 1;
+                    break;
+                } else if (length == 0) {
+                    log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+                    report_exit(args, "tun %d empty read", args->tun);
+                    error = 1;
+                    break;
+                }
+
+                queue_packet(&workers[get_shard(buffer, (size_t) length, count)],
+                             buffer, (size_t) length);
+            }
+        }
+    }
+
+    // Stop event loops
+    stop_workers(ctx);
+    for (int i = 0; i < count; i++)
+        if (workers[i].started) {
+            int err = pthread_join(workers[i].thread, NULL);
+            if (err)
+                log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+        }
+
+    // Cleanup
+    for (int i = 0; i < count; i++) {
+        if (workers[i].dropped)
+            log_android(ANDROID_LOG_WARN, "Event loop %d dropped %u packets", i, workers[i].dropped);
+        for (int j = 0; j < 2; j++)
+            if (workers[i].queue[j] >= 0 && close(workers[i].queue[j]))
+                log_android(ANDROID_LOG_ERROR, "queue close error %d: %s",
+                            errno, strerror(errno));
+    }
+
+    if (epoll_fd >= 0 && close(epoll_fd))
+        log_android(ANDROID_LOG_ERROR, "epoll close error %d: %s", errno, strerror(errno));
+
+    // Read the wakeups of the event loops, for the next run
+    uint8_t b;
+    while (read(ctx->pipefds[0], &b, 1) > 0);
+
+    ng_free(buffer, __FILE__, __LINE__);
+    (*args->env)->DeleteGlobalRef(args->env, instance);
+    ng_delete_alloc(instance, __FILE__, __LINE__);
+
+    log_android(ANDROID_LOG_WARN, "Stopped reader tun=%d", args->tun);
+}